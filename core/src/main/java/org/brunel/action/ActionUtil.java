@@ -83,20 +83,21 @@ public class ActionUtil {
      * is repeated.
      * @param action the original action
      * @param newData a parameter specifying the replacement data
-     * @return the action with all data() parameters replaced.
+     * @return a new action with all data() parameters replaced; the original is unchanged, as actions are immutable
      */
     public static Action replaceDataParameters(Action action, Param... newData) {
     	
     	int dataIndex = 0;
+    	ActionStep[] steps = action.steps.clone();
     	
-    	for (int i=0; i < action.steps.length; i++) {
-    		if (action.steps[i].name.equals("data")) {
-    			action.steps[i] = replaceParameters(action.steps[i], new Param[]{newData[dataIndex]});
+    	for (int i=0; i < steps.length; i++) {
+    		if (steps[i].name.equals("data")) {
+    			steps[i] = replaceParameters(steps[i], new Param[]{newData[dataIndex]});
     			dataIndex = Math.min(dataIndex+1, newData.length-1);
     		}
     	}
     	
-    	return action;
+    	return new Action(steps);
     	
     }
 }
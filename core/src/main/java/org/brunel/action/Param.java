@@ -26,7 +26,7 @@ import java.util.Arrays;
 import java.util.List;
 
 /**
- * Encapsulate a parameter for an action.
+ * Encapsulate a parameter for an action. Parameters are immutable, so they may be shared between actions and threads.
  */
 public class Param implements Comparable<Param> {
 
@@ -161,7 +161,7 @@ public class Param implements Comparable<Param> {
     }
 
     public Param[] modifiers() {
-        return modifiers;
+        return modifiers.clone();
     }
 
     public Type type() {
@@ -23,19 +23,80 @@ import org.brunel.data.Data;
 import org.brunel.model.VisException;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
 
 /**
- * Builds actions for Brunel
+ * Builds actions for Brunel.
+ * Text is parsed in a single pass directly from the characters, without making tokens. Tokens, which record the
+ * position and type of each part of the text, are only made when asked for by editors using tokenize(...), or to
+ * describe an error when the text cannot be parsed.
  */
 
 public class Parser {
 
+    /* How many parsed actions to keep */
+    private static final int CACHE_SIZE = 1000;
+
+    /* Recently parsed actions, keyed by their normalized text. Actions are immutable, so are safe to share */
+    private static final Map<String, Action> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, Action>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, Action> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    /**
+     * Parses text into an action. Recently parsed text is remembered, so repeated calls return the same action
+     *
+     * @param text input text
+     * @return the action
+     */
     public static Action parse(String text) {
-        Parser parse = new Parser();
-        List<BrunelToken> tokens = parse.tokenize(text);
-        return parse.makeActionFromTokens(tokens, text);
+        String key = normalizeWhitespace(text);
+        Action action = CACHE.get(key);
+        if (action == null) {
+            Parser parse = new Parser();
+            action = parse.parseDirect(text);
+            if (action == null) {
+                // Use the tokens to give a full description of the problem
+                List<BrunelToken> tokens = parse.tokenize(text);
+                action = parse.makeActionFromTokens(tokens, text);
+            }
+            CACHE.put(key, action);
+        }
+        return action;
+    }
+
+    /**
+     * Trims the text and replaces each run of white space outside quotes with a single space.
+     * White space only separates tokens, so texts that normalize the same way parse to the same action.
+     *
+     * @param text text to normalize
+     * @return normalized text
+     */
+    static String normalizeWhitespace(String text) {
+        StringBuilder b = new StringBuilder(text.length());
+        boolean space = false;                                  // True if white space needs adding before the next item
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = b.length() > 0;
+                continue;
+            }
+            if (space) b.append(' ');
+            space = false;
+            if (isQuote(c)) {
+                int end = findQuoteEnd(text, i, c);
+                b.append(text, i, end);
+                i = end - 1;
+            } else {
+                b.append(c);
+            }
+        }
+        return b.toString();
     }
 
     private static int findQuoteEnd(String text, int start, char quoteChar) {
@@ -58,23 +119,103 @@ public class Parser {
     }
 
     private static Param parseModifier(BrunelToken t) {
-        if (t.content.length() == 0) throw new IllegalStateException("Empty modifier");
-        Param result;
-        if (Data.isQuoted(t.content))
-            result = Param.makeString(Data.deQuote(t.content));
-        else {
-            Double d = Data.asNumeric(t.content);
-            if (d != null)
-                result = Param.makeNumber(d);
-            else
-                result = Param.makeOption(t.content.toLowerCase());
-        }
+        Param result = parseModifier(t.content);
         t.parsedType = result.type().toString();
         return result;
     }
 
+    private static Param parseModifier(String content) {
+        if (content.length() == 0) throw new IllegalStateException("Empty modifier");
+        if (Data.isQuoted(content)) return Param.makeString(Data.deQuote(content));
+        Double d = asNumber(content);
+        return d != null ? Param.makeNumber(d) : Param.makeOption(content.toLowerCase());
+    }
+
+    /* Same as Data.asNumeric, but avoids the cost of a failed parse for text that cannot be a number */
+    private static Double asNumber(String content) {
+        char c = content.charAt(0);
+        if ((c < '0' || c > '9') && c != '-' && c != '+' && c != '.' && c != 'I' && c != 'N') return null;
+        return Data.asNumeric(content);
+    }
+
     private final ParseGrammar grammar = ParseGrammar.instance();
 
+    /* State for parsing directly from the text */
+    private String text;                                    // The text being parsed
+    private int tokenStart, tokenEnd;                       // The current token is text[tokenStart, tokenEnd)
+
+    /**
+     * Parses text in a single pass, without making tokens
+     *
+     * @param text text to parse
+     * @return the action, or null if the text is not valid, or unusual enough to need the token-based parse
+     */
+    Action parseDirect(String text) {
+        this.text = text;
+        this.tokenEnd = 0;
+        try {
+            List<ActionStep> actions = new ArrayList<ActionStep>();
+            List<Param> params = new ArrayList<Param>();
+            while (nextToken()) {
+                GrammarItem definition = grammar.get(text, tokenStart, tokenEnd);
+                if (definition == null) return null;
+                if (definition.parameter == null && definition.options == null) {
+                    actions.add(new ActionStep(definition.name));
+                    continue;
+                }
+
+                // Parameters, separated by commas and each followed by any number of ':' modifiers
+                if (!nextToken() || !isToken('(') || !nextToken() || isToken(')')) return null;
+                params.clear();
+                do {
+                    if (isSpecialChar(text.charAt(tokenStart))) return null;
+                    params.add(parseParameter(definition, params.isEmpty()));
+                    if (!nextToken()) return null;
+                    while (isToken(':')) {
+                        if (!nextToken() || isSpecialChar(text.charAt(tokenStart))) return null;
+                        Param modifier = parseModifier(text.substring(tokenStart, tokenEnd));
+                        params.set(params.size() - 1, params.get(params.size() - 1).addModifiers(modifier));
+                        if (!nextToken()) return null;
+                    }
+                    if (isToken(',')) {
+                        if (!nextToken() || isToken(')')) return null;
+                    } else if (!isToken(')')) {
+                        return null;
+                    }
+                } while (!isToken(')'));
+                actions.add(new ActionStep(definition.name, params.toArray(new Param[params.size()])));
+            }
+            return actions.isEmpty() ? null : new Action(actions.toArray(new ActionStep[actions.size()]));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /* Moves to the next token, returning false if there are no more */
+    private boolean nextToken() {
+        int at = tokenEnd;
+        while (at < text.length() && Character.isWhitespace(text.charAt(at))) at++;
+        if (at == text.length()) return false;
+        tokenStart = at;
+        tokenEnd = findRunEnd(text, at, text.charAt(at));
+        return true;
+    }
+
+    /* True if the current token is the given special character */
+    private boolean isToken(char c) {
+        return tokenEnd == tokenStart + 1 && text.charAt(tokenStart) == c;
+    }
+
+    /* Parse the current token as a parameter, re-using the option names from the grammar */
+    private Param parseParameter(GrammarItem definition, boolean first) {
+        if (definition.options != null && first) {
+            for (String option : definition.options)
+                if (option.length() == tokenEnd - tokenStart && text.startsWith(option, tokenStart))
+                    return Param.makeOption(option);
+        }
+        return parseParameter(text.substring(tokenStart, tokenEnd), definition, first);
+    }
+
     public Action makeActionFromTokens(List<BrunelToken> tokens, String text) {
         try {
             if (tokens.isEmpty()) throw new IllegalStateException("Empty action string");
@@ -133,15 +274,15 @@ public class Parser {
                 expect("(", tokens.get(++at));
                 int parametersEnd = findParametersEnd(tokens, ++at);
                 if (parametersEnd < at + 1) throw new IllegalArgumentException("Empty parameters in " + s);
-                Stack<Param> params = new Stack<Param>();
+                List<Param> params = new ArrayList<Param>();
 
                 boolean expectParameter = true;              // false if we expect a colon or comma
                 for (int i = at; i < parametersEnd; i++) {
                     BrunelToken token = tokens.get(i);
                     if (expectParameter) {
-                        Param p = parseParameter(token, definition, i == at);
+                        Param p = parseParameter(token.content, definition, i == at);
                         token.parsedType = p.type().toString();
-                        params.push(p);
+                        params.add(p);
                         expectParameter = false;
                     } else {
                         if (":".equals(token.content)) {
@@ -149,7 +290,7 @@ public class Parser {
                             token.parsedType = "syntax";
                             if (i > parametersEnd - 2) throw new IllegalStateException("Unterminated option ':'");
                             Param modifier = parseModifier(tokens.get(++i)); // We have handled an extra token so increment i
-                            params.push(params.pop().addModifiers(modifier));
+                            params.set(params.size() - 1, params.get(params.size() - 1).addModifiers(modifier));
                         } else if (",".equals(token.content)) {
                             // Separates field
                             token.parsedType = "syntax";
@@ -226,9 +367,7 @@ public class Parser {
         return startChar == ',' || startChar == '(' || startChar == ')' || startChar == ':';
     }
 
-    private Param parseParameter(BrunelToken token, GrammarItem definition, boolean first) {
-
-        String content = token.content;
+    private Param parseParameter(String content, GrammarItem definition, boolean first) {
 
         if (definition.options != null) {
             // This command takes an option as parameters, so look for it in the allowed ones
@@ -246,7 +385,7 @@ public class Parser {
                 throw new IllegalStateException("Only one parameter allowed for " + definition.name);
 
             if (def.startsWith("NUMBER")) {
-                Double d = Data.asNumeric(content);
+                Double d = asNumber(content);
                 if (d == null)
                     throw new IllegalStateException("Expected numeric parameter for " + definition.name + ", but was: " + content);
                 return Param.makeNumber(d);
@@ -261,7 +400,7 @@ public class Parser {
             if (def.startsWith("FIELD/LIT")) {
                 if (Data.isQuoted(content))
                     return Param.makeString(Data.deQuote(content));
-                Double d = Data.asNumeric(content);
+                Double d = asNumber(content);
                 if (d != null) return Param.makeNumber(d);
                 return parseField(content, "Could not parse as literal or field");
             }
@@ -269,7 +408,7 @@ public class Parser {
             if (def.startsWith("FIELD")) {
                 if (Data.isQuoted(content))
                     return Param.makeString(Data.deQuote(content));
-                Double d = Data.asNumeric(content);
+                Double d = asNumber(content);
                 if (d != null) return Param.makeNumber(d);
                 return parseField(content, "Could not parse as field");
             }
@@ -41,6 +41,7 @@ public class ParseGrammar {
     }
 
     private final LinkedHashMap<String, GrammarItem> grammar;
+    private final GrammarItem[][] byFirstChar = new GrammarItem[128][];    // For finding items without a string
     private final Set<String> summaryMethods = new LinkedHashSet<String>();
     private final Set<String> transformMethods = new LinkedHashSet<String>();
 
@@ -56,12 +57,45 @@ public class ParseGrammar {
             if (words[1].equals("data")) summaryMethods.add(words[0]);
             if (words[1].equals("transform")) transformMethods.add(words[0]);
         }
+
+        // Index by first character
+        for (GrammarItem item : grammar.values()) {
+            int c = item.name.charAt(0);
+            GrammarItem[] items = byFirstChar[c];
+            if (items == null) {
+                items = new GrammarItem[1];
+            } else {
+                GrammarItem[] more = new GrammarItem[items.length + 1];
+                System.arraycopy(items, 0, more, 0, items.length);
+                items = more;
+            }
+            items[items.length - 1] = item;
+            byFirstChar[c] = items;
+        }
     }
 
     public GrammarItem get(String command) {
         return grammar.get(command);
     }
 
+    /**
+     * Finds the item for a command that is part of a larger text, without creating a string for it
+     *
+     * @param text  the text containing the command
+     * @param start start of the command (inclusive)
+     * @param end   end of the command (exclusive)
+     * @return the item, or null if the command is not known
+     */
+    public GrammarItem get(String text, int start, int end) {
+        char c = text.charAt(start);
+        GrammarItem[] items = c < byFirstChar.length ? byFirstChar[c] : null;
+        if (items == null) return null;
+        int length = end - start;
+        for (GrammarItem item : items)
+            if (item.name.length() == length && text.regionMatches(start, item.name, 0, length)) return item;
+        return null;
+    }
+
     public Set<String> getSummaryMethods() {
         return summaryMethods;
     }
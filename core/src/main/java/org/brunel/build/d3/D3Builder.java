@@ -31,6 +31,7 @@ import org.brunel.model.VisItem;
 import org.brunel.model.VisSingle;
 import org.brunel.model.VisTypes;
 
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -115,6 +116,8 @@ public class D3Builder extends AbstractBuilder {
     }
 
     private ScriptWriter out;                   // Where to write code
+    private Writer target;                      // If set, code is streamed here rather than kept
+    private boolean[] rawDataNeeded;            // For each data set, true if an element transforms it in the browser
     private int chartIndex;                     // Current chart index
     private int elementIndex;                   // Current element index
     private int visWidth, visHeight;            // Overall vis size
@@ -129,11 +132,23 @@ public class D3Builder extends AbstractBuilder {
 
     }
 
+    /**
+     * Sets a writer that subsequent builds send their Javascript to as it is generated, rather than keeping it for
+     * getVisualization(), which then cannot be called. This saves holding the whole program in memory, which matters
+     * for charts with large data tables. The writer is flushed, but not closed, at the end of each build.
+     *
+     * @param target where to write, or null to keep the Javascript in memory (the default)
+     */
+    public void setOutput(Writer target) {
+        this.target = target;
+    }
+
     protected String defineVisSystem(VisItem main, int width, int height) {
         this.visWidth = width;
         this.visHeight = height;
-        this.out = new ScriptWriter(options.readableJavascript);
+        this.out = new ScriptWriter(options.readableJavascript, target);
         this.chartIndex = 0;
+        this.rawDataNeeded = new boolean[main.getDataSets().length];
 
         // Write the class definition function (and flag to use strict mode)
         out.add("function ", options.className, "(visId) {").ln().indentMore();
@@ -148,6 +163,12 @@ public class D3Builder extends AbstractBuilder {
         out.add("    charts = [],").at(40).comment("The charts in the system");
         out.add("    vis = d3.select('#' + visId).attr('class', 'brunel')").comment("the SVG container");
 
+        // Compact output shares functions to access field values, rather than defining them for every field
+        if (!options.readableJavascript) {
+            out.add("function $val(f) { return function(d) { return f.value(d.row) } }").ln();
+            out.add("function $fmt(f) { return function(d) { return f.valueFormatted(d.row) } }").ln();
+        }
+
         return options.visIdentifier;
     }
 
@@ -236,7 +257,11 @@ public class D3Builder extends AbstractBuilder {
 
         // Data transforms
         D3DataBuilder dataBuilder = new D3DataBuilder(vis, out, data, datasetIndex);
-        dataBuilder.writeDataManipulation(createResultFields(vis));
+        Map<String, Integer> resultFields = createResultFields(vis);
+        boolean precompute = options.precomputeData && !dependency.isDependent(vis) && !dependency.isEdge(vis)
+                && dataBuilder.canPrecompute(resultFields);
+        if (!precompute) rawDataNeeded[datasetIndex] = true;
+        dataBuilder.writeDataManipulation(resultFields, precompute);
 
         scalesBuilder.writeAestheticScales(vis);
         scalesBuilder.writeLegends(vis);
@@ -310,7 +335,13 @@ public class D3Builder extends AbstractBuilder {
 
         // Define visualization functions
         out.titleComment("Expose the needed Visualization functions and fields");
-        out.add("function setData(rowData, i) { datasets[i||0] = BrunelData.Dataset.makeFromRows(rowData) }").endStatement();
+        String makeData = "BrunelData.Dataset.makeFromRows(rowData)";
+        if (options.dataFormat != BuilderOptions.DataFormat.rows)
+            makeData = "rowData.columns ? BrunelData.Dataset.makeFromColumns(rowData.names, rowData.types, rowData.columns) : "
+                    + makeData;
+        if (options.precomputeData)
+            makeData = "rowData == null ? null : " + makeData;              // Tables of precomputed data are null
+        out.add("function setData(rowData, i) { datasets[i||0] = " + makeData + " }").endStatement();
         out.add("function getData(i) { return datasets[i||0] }").endStatement();
 
         out.add("function buildSystem() {").ln().indentMore()
@@ -338,7 +369,9 @@ public class D3Builder extends AbstractBuilder {
         out.indentLess().onNewLine().add("}").endStatement();
 
         // Create the initial raw data table
-        D3DataBuilder.writeTables(main, out, options);
+        boolean[] omit = new boolean[rawDataNeeded.length];
+        for (int i = 0; i < omit.length; i++) omit[i] = !rawDataNeeded[i];
+        D3DataBuilder.writeTables(main, out, options, omit);
 
         // Call the function on the data
         if (options.generateBuildCode) {
@@ -355,6 +388,7 @@ public class D3Builder extends AbstractBuilder {
 
         // Add controls code
         controls.write(out);
+        out.flush();
 
     }
 
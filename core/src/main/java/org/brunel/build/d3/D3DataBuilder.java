@@ -26,6 +26,7 @@ import org.brunel.data.Dataset;
 import org.brunel.data.Field;
 import org.brunel.data.summary.FieldRowComparison;
 import org.brunel.data.util.DateFormat;
+import org.brunel.data.util.ItemsList;
 import org.brunel.data.util.Range;
 import org.brunel.model.VisItem;
 import org.brunel.model.VisSingle;
@@ -36,6 +37,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -57,13 +59,173 @@ public class D3DataBuilder {
     }
 
     public void writeDataManipulation(Map<String, Integer> requiredFields) {
+        writeDataManipulation(requiredFields, false);
+    }
+
+    /**
+     * Writes the function that prepares the data for the element
+     *
+     * @param requiredFields the fields the element uses, mapped to their indices
+     * @param precompute     if true, the transformed data (as built on the server) is written too, and used when
+     *                       there is no original data in the browser, so the transforms need not be run there.
+     *                       Only allowed when canPrecompute(requiredFields) is true
+     */
+    public void writeDataManipulation(Map<String, Integer> requiredFields, boolean precompute) {
+        if (precompute) writePrecomputedData(requiredFields);
         out.onNewLine().ln().add("function makeData() {").ln().indentMore();
-        writeDataTransforms();
+        writeDataTransforms(precompute);
         writeHookup(requiredFields);
         out.indentLess().onNewLine().add("}").endStatement().ln();
     }
 
+    /**
+     * Precomputed data cannot be used if the browser must redo the transforms (for selection or filtering), if a
+     * diagram needs the data in other forms, or if values in the data cannot be recreated exactly
+     *
+     * @param requiredFields the fields the element uses
+     * @return true if writeDataManipulation may precompute the data
+     */
+    public boolean canPrecompute(Map<String, Integer> requiredFields) {
+        if (vis.tDiagram != null || !vis.fFilter.isEmpty()) return false;
+        if (vis.tInteraction.containsKey(VisTypes.Interaction.select)) return false;
+        if (vis.tInteraction.containsKey(VisTypes.Interaction.filter)) return false;
+        for (String name : requiredFields.keySet()) {
+            Field field = data.field(name);
+            if (field == null) continue;
+            for (int r = 0; r < field.rowCount(); r++)
+                if (!canRecreate(field.value(r))) return false;
+            Object[] categories = explicitCategories(field);
+            if (categories != null) for (Object o : categories)
+                if (!canRecreate(o)) return false;
+        }
+        return true;
+    }
+
+    /* Categories set by a transform (such as sorting, or bins with no data), or null if they are the natural ones */
+    private static Object[] explicitCategories(Field field) {
+        Object[] values = new Object[field.rowCount()];
+        for (int r = 0; r < values.length; r++) values[r] = field.value(r);
+        Object[] natural = Data.makeColumnField(field.name, field.label, values).categories();
+        Object[] categories = field.categories();
+        return Arrays.equals(natural, categories) ? null : categories;
+    }
+
+    /* Ranges and lists must be ones that the standard constructors produce */
+    private static boolean canRecreate(Object value) {
+        if (value == null || value instanceof Number || value instanceof String || value instanceof Date)
+            return true;
+        if (value instanceof Range) {
+            Range range = (Range) value;
+            return range.low instanceof Number && range.high instanceof Number
+                    && Range.make(((Number) range.low).doubleValue(), ((Number) range.high).doubleValue())
+                    .toString().equals(range.toString());
+        }
+        if (value instanceof ItemsList) {
+            ItemsList list = (ItemsList) value;
+            for (Object o : list) if (!(o == null || o instanceof Number || o instanceof String)) return false;
+            return new ItemsList(list.toArray(), null).toString().equals(list.toString());
+        }
+        return false;
+    }
+
+    /*
+     * Defines 'makePrecomputed', which creates the transformed data directly. Strings are written once each in a
+     * dictionary that the rows index into. The properties that affect display are copied over, as are categories
+     * that were set by a transform; statistics are calculated in the browser as usual
+     */
+    private void writePrecomputedData(Map<String, Integer> requiredFields) {
+        out.onNewLine().ln().add("var precomputed;").at(40).comment("Transformed data, created when first needed");
+        out.add("function makePrecomputed() {").ln().indentMore();
+        out.add("var f = []").endStatement();
+        int n = 0;
+        for (String name : requiredFields.keySet()) {
+            Field field = data.field(name);
+            if (field == null) continue;
+            String target = "f[" + n++ + "]";
+            List<String> values = new ArrayList<String>(field.rowCount());
+            if (isAllStrings(field)) {
+                Map<Object, Integer> index = new HashMap<Object, Integer>();
+                List<String> dictionary = new ArrayList<String>();
+                for (int r = 0; r < field.rowCount(); r++) {
+                    Object value = field.value(r);
+                    Integer code = index.get(value);
+                    if (code == null) {
+                        code = dictionary.size();
+                        index.put(value, code);
+                        dictionary.add(precomputedValue(value));
+                    }
+                    values.add(code.toString());
+                }
+                out.add(target, "= BrunelData.Data.makeIndexedColumnField(" + out.quote(field.name) + ",",
+                        out.quote(field.label) + ", ");
+                writeList(dictionary, out);
+                out.add(",").onNewLine();
+                writeList(values, out);
+            } else {
+                for (int r = 0; r < field.rowCount(); r++) values.add(precomputedValue(field.value(r)));
+                out.add(target, "= BrunelData.Data.makeColumnField(" + out.quote(field.name) + ",",
+                        out.quote(field.label) + ", ");
+                writeList(values, out);
+            }
+            out.add(")").endStatement();
+            for (String key : new String[]{"numeric", "date", "binned", "summary", "transform"}) {
+                Object property = field.property(key);
+                if (property != null)
+                    out.add(target + ".set(" + out.quote(key) + ",",
+                            property instanceof String ? out.quote(property) : property, ")").endStatement();
+            }
+            Object[] categories = explicitCategories(field);
+            if (categories != null) {
+                List<String> items = new ArrayList<String>(categories.length);
+                for (Object o : categories) items.add(precomputedValue(o));
+                out.add(target + ".setCategories(");
+                writeList(items, out);
+                out.add(")").endStatement();
+            }
+        }
+        out.add("return BrunelData.Dataset.makeFromFields(f)").endStatement();
+        out.indentLess().add("}").endStatement();
+    }
+
+    private static boolean isAllStrings(Field field) {
+        for (int r = 0; r < field.rowCount(); r++) {
+            Object value = field.value(r);
+            if (value != null && !(value instanceof String)) return false;
+        }
+        return true;
+    }
+
+    /* Javascript expression for a value; canRecreate must be true for it */
+    private static String precomputedValue(Object value) {
+        if (value == null) return "null";
+        if (value instanceof String) return Data.quote((String) value);
+        if (value instanceof Number) return formatNumber(((Number) value).doubleValue());
+        if (value instanceof Date) return "new Date(" + ((Date) value).getTime() + ")";
+        if (value instanceof Range) {
+            Range range = (Range) value;
+            return "BrunelData.util_Range.make(" + precomputedValue(range.low) + ", " + precomputedValue(range.high) + ")";
+        }
+        StringBuilder items = new StringBuilder();
+        for (Object o : (ItemsList) value) {
+            if (items.length() > 0) items.append(",");
+            items.append(precomputedValue(o));
+        }
+        return "new BrunelData.util_ItemsList([" + items + "], null)";
+    }
+
     public static void writeTables(VisItem main, ScriptWriter out, BuilderOptions options) {
+        writeTables(main, out, options, null);
+    }
+
+    /**
+     * Writes the data tables
+     *
+     * @param main    the visualization
+     * @param out     where to write
+     * @param options the options defining what data to write, and how
+     * @param omit    if not null, the datasets with an entry of true are written as null (because they are not needed)
+     */
+    public static void writeTables(VisItem main, ScriptWriter out, BuilderOptions options, boolean[] omit) {
         if (options.includeData == BuilderOptions.DataMethod.none) return;
         if (options.includeData == BuilderOptions.DataMethod.minimal) {
             throw new UnsupportedOperationException("Cannot make minimal data yet");
@@ -74,6 +236,11 @@ public class D3DataBuilder {
             Dataset data = datasets[d];
             Field[] fields;
 
+            if (omit != null && omit[d]) {
+                out.onNewLine().add("var", String.format(options.dataName, d + 1), "= null").endStatement();
+                continue;
+            }
+
             if (options.includeData == BuilderOptions.DataMethod.columns) {
                 // Only the fields needed by the vis items
                 LinkedHashSet<Field> fieldsAsSet = new LinkedHashSet<Field>();
@@ -89,6 +256,12 @@ public class D3DataBuilder {
                 fields = new Field[] { Data.makeConstantField("_dummy_", "Dummy", 1.0, data.rowCount())};
             }
 
+            if (options.dataFormat != BuilderOptions.DataFormat.rows) {
+                writeColumnarTable(String.format(options.dataName, d + 1), fields, data.rowCount(), out,
+                        options.dataFormat == BuilderOptions.DataFormat.binary);
+                continue;
+            }
+
             // Name the table with a numeric suffix for multiple tables
             out.onNewLine().add("var", String.format(options.dataName, d + 1), "= [").ln().indentMore();
             int numPerLine = 12 / Math.max(1, Math.max(1, fields.length));
@@ -109,6 +282,125 @@ public class D3DataBuilder {
         }
     }
 
+    /*
+     * Writes the table as an object with a type code and an array for each column (see Dataset.makeFromColumns).
+     * Strings are written once each in a dictionary, and the rows refer to them by index
+     */
+    private static void writeColumnarTable(String name, Field[] fields, int rowCount, ScriptWriter out, boolean binary) {
+        List<Field> written = new ArrayList<Field>();
+        for (Field f : fields) if (!f.name.startsWith("#")) written.add(f);
+
+        StringBuilder names = new StringBuilder(), types = new StringBuilder();
+        for (Field f : written) {
+            if (names.length() > 0) {
+                names.append(", ");
+                types.append(", ");
+            }
+            names.append(Data.quote(f.name));
+            types.append('\'').append(columnType(f, binary)).append('\'');
+        }
+
+        out.onNewLine().add("var", name, "= {").ln().indentMore();
+        out.add("names: [" + names + "],").ln();
+        out.add("types: [" + types + "],").ln();
+        out.add("columns: [").indentMore();
+        for (int i = 0; i < written.size(); i++) {
+            Field field = written.get(i);
+            char type = columnType(field, binary);
+            out.onNewLine();
+            if (type == 'b') {
+                out.add("'" + encodeDoubles(field, rowCount) + "'");
+            } else if (type == 'k') {
+                Map<Object, Integer> index = new HashMap<Object, Integer>();
+                List<String> dictionary = new ArrayList<String>();
+                List<String> codes = new ArrayList<String>(rowCount);
+                for (int r = 0; r < rowCount; r++) {
+                    Object value = field.value(r);
+                    Integer code = index.get(value);
+                    if (code == null) {
+                        code = dictionary.size();
+                        index.put(value, code);
+                        dictionary.add(value == null ? "null" : Data.quote(value.toString()));
+                    }
+                    codes.add(code.toString());
+                }
+                out.add("[");
+                writeList(dictionary, out);
+                out.add(",").onNewLine();
+                writeList(codes, out);
+                out.add("]");
+            } else {
+                List<String> values = new ArrayList<String>(rowCount);
+                for (int r = 0; r < rowCount; r++) {
+                    Object value = field.value(r);
+                    Double v = type == 'd' ? millis(value) : Data.asNumeric(value);
+                    values.add(v == null ? "null" : formatNumber(v));
+                }
+                writeList(values, out);
+            }
+            if (i < written.size() - 1) out.add(",");
+        }
+        out.indentLess().onNewLine().add("]").ln();
+        out.indentLess().add("}").endStatement();
+    }
+
+    /* Dates, numbers (raw or binary) or dictionary-encoded strings; ranges are written as their text */
+    private static char columnType(Field field, boolean binary) {
+        if (field.isDate()) return 'd';
+        if (field.isNumeric() && !hasRanges(field)) return binary ? 'b' : 'v';
+        return 'k';
+    }
+
+    private static boolean hasRanges(Field field) {
+        for (int r = 0; r < field.rowCount(); r++) {
+            Object value = field.value(r);
+            if (value != null) return value instanceof Range;
+        }
+        return false;
+    }
+
+    private static Double millis(Object value) {
+        Date date = Data.asDate(value);
+        return date == null ? null : (double) date.getTime();
+    }
+
+    /* Integers are written without a decimal point */
+    private static String formatNumber(double v) {
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) return Long.toString((long) v);
+        return Double.toString(v);
+    }
+
+    private static void writeList(List<String> items, ScriptWriter out) {
+        out.add("[");
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) out.add(",");
+            if (i % 20 == 19) out.onNewLine();
+            out.add(items.get(i));
+        }
+        out.add("]");
+    }
+
+    /* Base64 of the little-endian bits of each value, with NaN for missing values */
+    private static String encodeDoubles(Field field, int rowCount) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        byte[] bytes = new byte[rowCount * 8];
+        for (int r = 0; r < rowCount; r++) {
+            Double v = Data.asNumeric(field.value(r));
+            long bits = Double.doubleToLongBits(v == null ? Double.NaN : v);
+            for (int k = 0; k < 8; k++) bytes[8 * r + k] = (byte) (bits >>> (8 * k));
+        }
+        StringBuilder b = new StringBuilder((bytes.length + 2) / 3 * 4);
+        for (int i = 0; i < bytes.length; i += 3) {
+            int n = (bytes[i] & 0xff) << 16;
+            if (i + 1 < bytes.length) n |= (bytes[i + 1] & 0xff) << 8;
+            if (i + 2 < bytes.length) n |= bytes[i + 2] & 0xff;
+            b.append(alphabet.charAt(n >> 18)).append(alphabet.charAt((n >> 12) & 63));
+            b.append(i + 1 < bytes.length ? alphabet.charAt((n >> 6) & 63) : '=');
+            b.append(i + 2 < bytes.length ? alphabet.charAt(n & 63) : '=');
+        }
+        return b.toString();
+    }
+
     private static void addUsedFields(VisItem item, Dataset data, Collection<Field> fields) {
         if (item.children() == null) {
             VisSingle vis = (VisSingle) item;                           // No children => VisSingle
@@ -126,6 +418,10 @@ public class D3DataBuilder {
 
     private void defineKeyFieldFunction(List<String> fields, boolean actsOnRowObject, Map<String, Integer> usedFields) {
         // Add the split fields accessor
+        if (!out.readable && actsOnRowObject && fields.size() == 1) {
+            out.add("$val(f" + usedFields.get(fields.get(0)) + ")");
+            return;
+        }
         out.add("function(d) { return ");
         if (fields.isEmpty()) {
             out.add("'ALL'");
@@ -227,11 +523,16 @@ public class D3DataBuilder {
         return true;
     }
 
-    private void writeDataTransforms() {
+    private void writeDataTransforms(boolean precompute) {
         // The parameters are stored in the data set when it is transformed
         DataTransformParameters params = (DataTransformParameters) data.property("parameters");
         D3Util.addTiming("Data Start", out);
         out.add("original = datasets[" + datasetIndex + "]").endStatement();
+        if (precompute) {
+            // Only run the transforms if we have been given new data
+            out.add("if (original == null) processed = precomputed = precomputed || makePrecomputed()").endStatement();
+            out.add("else ");
+        }
         out.add("processed = pre(original,", datasetIndex, ")");
         out.mark();
         writeTransform("addConstants", params.constantsCommand);
@@ -293,16 +594,22 @@ public class D3DataBuilder {
 
         out.add("data = {").ln().indentMore();
 
-        // Add field definitions
+        // Add field definitions (compact output uses the shared accessor functions defined by the builder)
         for (int fieldIndex = 0; fieldIndex < fields.length; fieldIndex++) {
             String fieldID = D3Util.canonicalFieldName(fields[fieldIndex]);
-            out.add(fieldID, ":").at(24).add("function(d) { return f" + fieldIndex + ".value(d.row) },").ln();
+            if (out.readable)
+                out.add(fieldID, ":").at(24).add("function(d) { return f" + fieldIndex + ".value(d.row) },").ln();
+            else
+                out.add(fieldID + ":$val(f" + fieldIndex + "),").ln();
         }
 
         // Add formatted field definitions
         for (int fieldIndex = 0; fieldIndex < fields.length; fieldIndex++) {
             String fieldID = D3Util.canonicalFieldName(fields[fieldIndex]);
-            out.add(fieldID + "_f", ":").at(24).add("function(d) { return f" + fieldIndex + ".valueFormatted(d.row) },").ln();
+            if (out.readable)
+                out.add(fieldID + "_f", ":").at(24).add("function(d) { return f" + fieldIndex + ".valueFormatted(d.row) },").ln();
+            else
+                out.add(fieldID + "_f:$fmt(f" + fieldIndex + "),").ln();
         }
         // Add special items
         out.add("_split:").at(24);
@@ -1,5 +1,7 @@
 package org.brunel.build.util;
 
+import java.lang.reflect.Modifier;
+
 /**
  * Options that can be set for a builder
  */
@@ -14,14 +16,42 @@ public class BuilderOptions {
      */
     public enum DataMethod { none, full, columns, minimal}
 
+    /**
+     * rows - an array of rows, each an array of values
+     * columnar - an array per column; strings are stored once in a dictionary and indexed, dates as epoch milliseconds
+     * binary - as columnar, but numeric columns are base64 encoded 8-byte doubles
+     */
+    public enum DataFormat { rows, columnar, binary }
+
     public String visIdentifier = "visualization";              // The HTML ID of the SVG element containign the vis
     public String dataName = "table%d";                         // Pattern for the data table ID. %d is the index.
     public String className = "BrunelVis";                      // Name of the base function
     public DataMethod includeData = DataMethod.columns;         // What level of data to include
+    public DataFormat dataFormat = DataFormat.rows;             // How to write included data
+    public boolean precomputeData = false;                      // if true, send transformed data where possible
     public boolean exposeHooks = true;                          // if true, expose hooks for Javascript to use
     public boolean generateBuildCode = true;                    // if true, Add javascript to build the chart initially
     public boolean readableJavascript = true;                   // Readable or shorter
     public String localResources;                               // If set, get resources from this local directory
     public String version = "0.7";                              // Which online version to use
 
+    /**
+     * Describes all the option values, so that builds with the same options have the same description
+     *
+     * @return text listing each option and its value
+     */
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        for (java.lang.reflect.Field f : getClass().getFields()) {
+            if (Modifier.isStatic(f.getModifiers())) continue;
+            try {
+                if (b.length() > 0) b.append(", ");
+                b.append(f.getName()).append('=').append(f.get(this));
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return b.toString();
+    }
+
 }
@@ -19,7 +19,9 @@ package org.brunel.build.util;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
+import java.net.URLConnection;
 
 public class ContentReader {
     public static String readContent(InputStream is) throws IOException {
@@ -38,4 +40,55 @@ public class ContentReader {
         //TODO:  Centrally handle security
         return readContent(uri.toURL().openStream());
     }
+
+    /**
+     * Reads content from a URL, sending the validators from a previous read so an HTTP server can reply that
+     * the content has not changed instead of sending it again.
+     *
+     * @param uri          the location to read from
+     * @param etag         the ETag from the previous read, or null
+     * @param lastModified the Last-Modified value from the previous read, or null
+     * @return the content read; its text is null if the server reported it as not modified
+     * @throws IOException if the content could not be read
+     */
+    public static UrlContent readContentFromUrl(URI uri, String etag, String lastModified) throws IOException {
+        URLConnection connection = uri.toURL().openConnection();
+        if (etag != null) connection.setRequestProperty("If-None-Match", etag);
+        if (lastModified != null) connection.setRequestProperty("If-Modified-Since", lastModified);
+
+        if (connection instanceof HttpURLConnection) {
+            HttpURLConnection http = (HttpURLConnection) connection;
+            if (http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                http.disconnect();
+                return new UrlContent(null, etag, lastModified);
+            }
+        }
+
+        InputStream is = connection.getInputStream();
+        try {
+            return new UrlContent(readContent(is), connection.getHeaderField("ETag"),
+                    connection.getHeaderField("Last-Modified"));
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Content read from a URL, together with the validators needed to check later whether it has changed
+     */
+    public static class UrlContent {
+        public final String text;                   // Null when the server said it was not modified
+        public final String etag;
+        public final String lastModified;
+
+        UrlContent(String text, String etag, String lastModified) {
+            this.text = text;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public boolean notModified() {
+            return text == null;
+        }
+    }
 }
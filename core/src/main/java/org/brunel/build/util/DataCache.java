@@ -21,9 +21,17 @@ import org.brunel.data.Dataset;
 import org.brunel.data.io.CSV;
 import org.brunel.util.GeneratedData;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Brunel's access to Datasets via a cache.  The key must be unique.  If the key is an URL it will
@@ -32,10 +40,24 @@ import java.net.URI;
 public class DataCache {
 
     public static final String SAMPLE_DATA_LOCATION = "http://brunel.mybluemix.net/sample_data/";
+    private static final String MANIFEST = "manifest.txt";
+    private static final Charset UTF8 = Charset.forName("utf-8");
+
     // Local cache is needed because Brunel needs identical Datasets to be the same instance
-    private static DatasetCache localCache = new SimpleCache();
+    private static SimpleCache localCache = new SimpleCache() {
+        protected void evicted(String key) {
+            // Stores are always made holding our lock, so this is safe. Times to live are settings, so are kept
+            validity.remove(key);
+        }
+    };
     private static DatasetCache userCache = null;
 
+    // Time to live in milliseconds for URL data; after this we check with the source to see if it has changed
+    // Validity entries are dropped when their data is dropped from the local cache
+    private static long defaultTimeToLive = Long.MAX_VALUE;
+    private static final Map<String, Long> timeToLive = new HashMap<String, Long>();
+    private static final Map<String, Validity> validity = new HashMap<String, Validity>();
+
     /**
      * Specify an alternative cache implementation for storing Datasets by key.
      * This should called once before any use of caching.
@@ -46,6 +68,36 @@ public class DataCache {
         userCache = cache;
     }
 
+    /**
+     * Sets how long data read from a URL is used before checking whether the source has changed. If the source
+     * supports it, the check is a conditional HTTP request, so unchanged data is neither downloaded nor reparsed.
+     * By default data is never rechecked.
+     *
+     * @param millis the time to live in milliseconds for keys that have no specific time set
+     */
+    public static synchronized void setTimeToLive(long millis) {
+        defaultTimeToLive = millis;
+    }
+
+    /**
+     * Sets how long data read from a URL for a given key is used before checking whether the source has changed.
+     *
+     * @param dataKey the key the data is requested with
+     * @param millis  the time to live in milliseconds
+     */
+    public static synchronized void setTimeToLive(String dataKey, long millis) {
+        timeToLive.put(dataKey, millis);
+    }
+
+    /**
+     * Removes the time to live set for a given key, so the time for keys with no specific time is used.
+     *
+     * @param dataKey the key the data is requested with
+     */
+    public static synchronized void clearTimeToLive(String dataKey) {
+        timeToLive.remove(dataKey);
+    }
+
     /**
      * This method will return the value in the cache if it exists, and if not, it will read the data
      *
@@ -89,24 +141,117 @@ public class DataCache {
         }
 
         Dataset dataset = useCache ? localCache.retrieve(dataKey) : null;
-        if (dataset != null) return dataset;
 
         // Not found in local cache check if in user supplied cache.
         // If so, stick it back in the local cache
-        if (userCache != null && useCache) {
+        if (dataset == null && userCache != null && useCache) {
             dataset = userCache.retrieve(dataKey);
-            if (dataset != null) localCache.store(dataKey, dataset);
+            if (dataset != null) {
+                localCache.store(dataKey, dataset);
+                readAtUnknownTime(dataKey);
+            }
         }
-        if (dataset != null) return dataset;
+        if (dataset != null && (is != null || !isExpired(dataKey))) return dataset;
 
         // Actually read the data
-        String content = is == null ? ContentReader.readContentFromUrl(uri) : ContentReader.readContent(is);
+        String content;
+        if (is != null) {
+            content = ContentReader.readContent(is);
+            validity.remove(dataKey);                               // Not from a URL, so never rechecked
+        } else {
+            // If we have a stale version, ask the server only to send the data if it has changed
+            Validity previous = dataset == null ? null : validity.get(dataKey);
+            ContentReader.UrlContent read = ContentReader.readContentFromUrl(uri,
+                    previous == null ? null : previous.etag, previous == null ? null : previous.lastModified);
+            validity.put(dataKey, new Validity(System.currentTimeMillis(), read.etag, read.lastModified));
+            if (read.notModified()) return dataset;
+            content = read.text;
+        }
         dataset = Dataset.make(CSV.read(content));
         localCache.store(dataKey, dataset);
         if (userCache != null) userCache.store(dataKey, dataset);
         return dataset;
     }
 
+    /**
+     * Writes the datasets currently held in the local cache to a directory, together with a manifest of their keys,
+     * so that a later process can preload them using {@link #restore(File)}. Generated and raw data are not written,
+     * as they are cheap to recreate.
+     *
+     * @param directory the directory to write into; any previous snapshot in it is replaced
+     * @throws IOException if the manifest cannot be written
+     */
+    public static synchronized void snapshot(File directory) throws IOException {
+        DiskCache disk = new DiskCache(directory, 0);             // No memory, so every dataset is spilled
+        disk.clear();
+        List<String> keys = new ArrayList<String>();
+        for (String key : localCache.keys()) {
+            if (key.startsWith("generate:") || key.startsWith("raw:")) continue;
+            Dataset dataset = localCache.retrieve(key);
+            if (dataset == null) continue;
+            disk.store(key, dataset);
+            keys.add(key);
+        }
+        disk.flush();
+        Files.write(new File(directory, MANIFEST).toPath(), keys, UTF8);
+    }
+
+    /**
+     * Preloads the datasets written by {@link #snapshot(File)} into the cache. This runs on a background daemon
+     * thread so that startup is not delayed; requests made in the meantime are served as usual.
+     *
+     * @param directory the directory holding the snapshot
+     * @return the thread doing the loading (already started)
+     */
+    public static Thread restore(final File directory) {
+        Thread thread = new Thread("brunel-cache-restore") {
+            public void run() {
+                File manifest = new File(directory, MANIFEST);
+                List<String> keys = Collections.emptyList();
+                try {
+                    if (manifest.exists()) keys = Files.readAllLines(manifest.toPath(), UTF8);
+                } catch (IOException ignored) {
+                    // An unreadable manifest means we start cold
+                }
+                DiskCache disk = new DiskCache(directory, Long.MAX_VALUE);
+                for (String key : keys) {
+                    if (key.isEmpty()) continue;
+                    Dataset dataset = disk.retrieve(key);           // Read outside the lock
+                    if (dataset == null) continue;
+                    synchronized (DataCache.class) {
+                        // Do not replace anything a request has already loaded
+                        if (localCache.retrieve(key) == null) {
+                            localCache.store(key, dataset);
+                            readAtUnknownTime(key);
+                        }
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /* True if the data was read from a URL longer ago than its time to live */
+    private static boolean isExpired(String dataKey) {
+        Validity v = validity.get(dataKey);
+        if (v == null) return false;
+        Long ttl = timeToLive.get(dataKey);
+        long limit = ttl == null ? defaultTimeToLive : ttl;
+        return System.currentTimeMillis() - v.readTime >= limit;
+    }
+
+    /* URL data from elsewhere (user cache, snapshot) is treated as old, so it is rechecked once a time to live is set */
+    private static void readAtUnknownTime(String dataKey) {
+        if (validity.containsKey(dataKey)) return;
+        URI uri = makeURI(dataKey);
+        if (uri == null || uri.getScheme() == null) return;               // Uploaded data
+        String scheme = uri.getScheme();
+        if (scheme.equals("generate") || scheme.equals("raw")) return;  // Created, not read
+        validity.put(dataKey, new Validity(0, null, null));
+    }
+
     /* Returns null for invalid URIs */
     private static URI makeURI(String key) {
         try {
@@ -117,4 +262,17 @@ public class DataCache {
         }
     }
 
+    /* Records when URL data was read, and the information needed to check later if it has changed */
+    private static class Validity {
+        final long readTime;
+        final String etag;
+        final String lastModified;
+
+        Validity(long readTime, String etag, String lastModified) {
+            this.readTime = readTime;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
 }
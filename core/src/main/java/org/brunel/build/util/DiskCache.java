@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.build.util;
+
+import org.brunel.data.Dataset;
+import org.brunel.data.io.Serialize;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A two-tier cache: recently used datasets are kept in memory, and when the memory limit is exceeded the
+ * least recently used ones are written to a local directory using the Brunel serialization format.
+ * A later miss in memory is satisfied from disk, so the original source does not need to be re-read and re-parsed.
+ * Datasets read back from disk stay mapped to their files, so a file is never rewritten: each spill writes a new file
+ * whose name holds a generation number, and the newest file for a key is the current one. Files left by an earlier
+ * cache in the same directory are found when the cache is created.
+ */
+public class DiskCache implements DatasetCache {
+
+    /* Default maximum amount of memory to allow in cache in bytes */
+    private static final long DEFAULT_MAX_MEMORY = 128 * 1024 * 1024;
+
+    private static final String SUFFIX = ".brunel";
+    private static final Charset UTF8 = Charset.forName("utf-8");
+
+    private final File directory;                                   // Where we spill datasets
+    private final long maxMemory;                                   // Memory limit for in-memory datasets
+    private final Map<String, Dataset> map = new LinkedHashMap<String, Dataset>(16, 0.75f, true);
+    private final Map<String, File> files = new HashMap<String, File>();    // Current file by key digest
+    private final Set<File> undeleted = new HashSet<File>();               // Old files we failed to delete
+    private long estimatedMemoryUse = 0;
+    private static long lastGeneration = 0;
+
+    /**
+     * Create a cache using the default memory limit
+     *
+     * @param directory the directory to spill datasets into; it is created if needed
+     */
+    public DiskCache(File directory) {
+        this(directory, DEFAULT_MAX_MEMORY);
+    }
+
+    /**
+     * Create a cache
+     *
+     * @param directory the directory to spill datasets into; it is created if needed
+     * @param maxMemory the estimated number of bytes of datasets to keep in memory
+     */
+    public DiskCache(File directory, long maxMemory) {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IllegalArgumentException("Cannot create cache directory: " + directory);
+        this.directory = directory;
+        this.maxMemory = maxMemory;
+        findFiles();
+    }
+
+    @Override
+    public synchronized void store(String key, Dataset dataset) {
+        Dataset previous = map.put(key, dataset);
+        if (previous != null) estimatedMemoryUse -= previous.expectedSize();
+        estimatedMemoryUse += dataset.expectedSize();
+        discard(files.remove(digest(key)));                         // Any spilled version is now out of date
+        evict();
+    }
+
+    @Override
+    public synchronized Dataset retrieve(String key) {
+        Dataset dataset = map.get(key);
+        if (dataset != null) return dataset;
+
+        // Try to read it back from disk and promote it to memory again
+        dataset = readFromDisk(key);
+        if (dataset == null) return null;
+        map.put(key, dataset);
+        estimatedMemoryUse += dataset.expectedSize();
+        evict();
+        return dataset;
+    }
+
+    /**
+     * Writes all in-memory datasets to disk. Useful before shutting down, so a restarted process does not
+     * need to refetch its data
+     */
+    public synchronized void flush() {
+        for (Map.Entry<String, Dataset> e : map.entrySet()) spill(e.getKey(), e.getValue());
+    }
+
+    /**
+     * Removes all datasets from memory and deletes all spilled files
+     */
+    public synchronized void clear() {
+        map.clear();
+        files.clear();
+        estimatedMemoryUse = 0;
+        File[] all = directory.listFiles();
+        if (all != null)
+            for (File f : all) if (f.getName().endsWith(SUFFIX)) discard(f);
+    }
+
+    /* Spill the least recently used datasets until we are within the memory limit */
+    private void evict() {
+        List<String> removed = new ArrayList<String>();
+        long use = estimatedMemoryUse;
+        for (Map.Entry<String, Dataset> e : map.entrySet()) {
+            // Always keep the most recently used item in memory, no matter how large
+            if (use <= maxMemory || removed.size() == map.size() - 1) break;
+            spill(e.getKey(), e.getValue());
+            use -= e.getValue().expectedSize();
+            removed.add(e.getKey());
+        }
+        for (String key : removed) map.remove(key);
+        estimatedMemoryUse = use;
+    }
+
+    private void spill(String key, Dataset dataset) {
+        String name = digest(key);
+        if (files.containsKey(name)) return;                        // Already spilled and still up to date
+        retryDeletes();
+        File temp = null;
+        try {
+            // Write to a temporary file and then move it to a new name so readers never see a partial file
+            temp = File.createTempFile("spill", ".tmp", directory);
+            Files.write(temp.toPath(), Serialize.serializeDataset(dataset));
+            File target = new File(directory, name + "." + nextGeneration() + SUFFIX);
+            Files.move(temp.toPath(), target.toPath());
+            files.put(name, target);
+        } catch (IOException e) {
+            // Failing to spill just means we lose the cached item
+            discard(temp);
+        }
+    }
+
+    private Dataset readFromDisk(String key) {
+        String name = digest(key);
+        File file = files.get(name);
+        if (file == null) return null;
+        try {
+            // Mapped, so the rows are read from the file on demand rather than copied into memory
+            return (Dataset) Serialize.deserialize(file);
+        } catch (Exception e) {
+            // Unreadable or from an incompatible version -- discard it
+            files.remove(name);
+            discard(file);
+            return null;
+        }
+    }
+
+    /* Finds files left by an earlier cache; the newest for each key is current and any others are stale */
+    private void findFiles() {
+        File[] all = directory.listFiles();
+        if (all == null) return;
+        Map<String, Long> generations = new HashMap<String, Long>();
+        for (File f : all) {
+            String name = f.getName();
+            int dot = name.indexOf('.');
+            if (dot < 0 || !name.endsWith(SUFFIX)) continue;
+            long generation;
+            try {
+                generation = Long.parseLong(name.substring(dot + 1, name.length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            String key = name.substring(0, dot);
+            Long current = generations.get(key);
+            if (current == null || generation > current) {
+                discard(files.put(key, f));
+                generations.put(key, generation);
+            } else {
+                discard(f);
+            }
+        }
+    }
+
+    /* Increasing, and also increasing over restarts as it is based on the time */
+    private static synchronized long nextGeneration() {
+        lastGeneration = Math.max(lastGeneration + 1, System.currentTimeMillis());
+        return lastGeneration;
+    }
+
+    /* Deletes a file; a file still mapped by a reader cannot be deleted on some systems, so we try again later */
+    private void discard(File f) {
+        if (f != null && !f.delete() && f.exists()) undeleted.add(f);
+    }
+
+    private void retryDeletes() {
+        if (undeleted.isEmpty()) return;
+        List<File> pending = new ArrayList<File>(undeleted);
+        undeleted.clear();
+        for (File f : pending) discard(f);
+    }
+
+    /* Keys may be long URLs or raw data, so we use a digest of them in the file name */
+    private static String digest(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF8));
+            StringBuilder b = new StringBuilder();
+            for (byte d : digest) b.append(String.format("%02x", d & 0xff));
+            return b.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.build.util;
+
+import org.brunel.action.Action;
+import org.brunel.data.Dataset;
+import org.brunel.data.io.Serialize;
+
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Caches generated output, such as Javascript or whole HTML pages, so identical requests need not rebuild it.
+ * Entries are keyed by a description of the request and also record the data they were built from; an entry is only
+ * used if that data is unchanged. Strings are compared by value, and other data (such as datasets from the DataCache)
+ * by identity, so a dataset that has been reloaded makes the entries using it stale.
+ * So that the cache does not hold on to the data, long strings are kept as a digest and other data is referenced
+ * weakly; an entry whose data has been garbage collected is stale.
+ * The least recently used entries are dropped when the estimated memory use, including the recorded data, exceeds
+ * the limit.
+ */
+public class OutputCache {
+
+    /* Default maximum amount of memory to allow in cache in bytes */
+    private static final long DEFAULT_MAX_MEMORY = 64 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("utf-8");
+    private static final int MAX_TEXT = 256;                     // Longer strings are kept as a digest
+    private static final long SOURCE_SIZE = 64;                   // Estimated bytes to record any source
+
+    // Content digests of datasets; kept here rather than on the datasets, as derived datasets copy their properties
+    private static final Map<Dataset, String> fingerprints = new WeakHashMap<Dataset, String>();
+
+    private final long maxMemory;
+    private final Map<String, Entry> map = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long estimatedMemoryUse = 0;
+
+    public OutputCache() {
+        this(DEFAULT_MAX_MEMORY);
+    }
+
+    /**
+     * Create a cache
+     *
+     * @param maxMemory the estimated number of bytes of output to keep
+     */
+    public OutputCache(long maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * Makes a key for output built from an action. The action is simplified, so equivalent actions share a key
+     *
+     * @param action  the action
+     * @param width   pixel width
+     * @param height  pixel height
+     * @param options the builder options
+     * @param more    any other items that affect the output
+     * @return key for use in this cache
+     */
+    public static String key(Action action, int width, int height, BuilderOptions options, Object... more) {
+        Action simplified = action.simplify();
+        StringBuilder b = new StringBuilder();
+        b.append(simplified == null ? action : simplified).append('\n').append(width).append('x').append(height);
+        b.append('\n').append(options);
+        for (Object o : more) b.append('\n').append(o);
+        return b.toString();
+    }
+
+    /**
+     * Makes a digest identifying output by its key and the content of the data it is built from. Unlike the cache
+     * itself, this compares datasets by content, so it remains valid when data is reloaded or the process restarts,
+     * and so is suitable for use as an HTTP entity tag.
+     * The digest of a dataset is stored as one of its properties, so each dataset is only digested once
+     *
+     * @param key     the key for the request
+     * @param sources the data the output is built from; Strings and Datasets are digested by content
+     * @return hexadecimal digest
+     */
+    public static String fingerprint(String key, Object[] sources) {
+        MessageDigest digest = makeDigest();
+        digest.update(key.getBytes(UTF8));
+        for (Object o : sources) {
+            digest.update((byte) 0);
+            if (o instanceof Dataset) {
+                digest.update(fingerprint((Dataset) o).getBytes(UTF8));
+            } else {
+                digest.update(String.valueOf(o).getBytes(UTF8));
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    private static String fingerprint(Dataset dataset) {
+        String print;
+        synchronized (fingerprints) {
+            print = fingerprints.get(dataset);
+        }
+        if (print == null) {
+            // Digest outside the lock; at worst two threads calculate the same value
+            print = hex(makeDigest().digest(Serialize.serializeDataset(dataset)));
+            synchronized (fingerprints) {
+                fingerprints.put(dataset, print);
+            }
+        }
+        return print;
+    }
+
+    /**
+     * Retrieve stored output
+     *
+     * @param key     the key for the request
+     * @param sources the data the output would be built from
+     * @return the output, or null if there is none for this key built from the same data
+     */
+    public synchronized Object retrieve(String key, Object[] sources) {
+        Entry entry = map.get(key);
+        if (entry == null) return null;
+        if (entry.matches(sources)) return entry.value;
+        remove(key);                                            // Out of date
+        return null;
+    }
+
+    /**
+     * Store output
+     *
+     * @param key     the key for the request
+     * @param sources the data the output was built from
+     * @param value   the output
+     * @param size    estimated size of the output in bytes
+     */
+    public synchronized void store(String key, Object[] sources, Object value, long size) {
+        remove(key);
+        Entry entry = new Entry(sources, value, size);
+        map.put(key, entry);
+        estimatedMemoryUse += entry.size;
+
+        // Drop the least recently used, but always keep the new item
+        Iterator<Entry> entries = map.values().iterator();
+        while (estimatedMemoryUse > maxMemory && map.size() > 1) {
+            estimatedMemoryUse -= entries.next().size;
+            entries.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        estimatedMemoryUse = 0;
+    }
+
+    private void remove(String key) {
+        Entry previous = map.remove(key);
+        if (previous != null) estimatedMemoryUse -= previous.size;
+    }
+
+    private static MessageDigest makeDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder b = new StringBuilder();
+        for (byte d : bytes) b.append(String.format("%02x", d & 0xff));
+        return b.toString();
+    }
+
+    private static String digest(String text) {
+        return hex(makeDigest().digest(text.getBytes(UTF8)));
+    }
+
+    private static class Entry {
+        final Object[] sources;                     // Short strings, digests of long ones, or weak references
+        final Object value;
+        final long size;
+
+        Entry(Object[] sources, Object value, long size) {
+            this.sources = new Object[sources.length];
+            for (int i = 0; i < sources.length; i++) {
+                Object o = sources[i];
+                if (o instanceof String) {
+                    String text = (String) o;
+                    this.sources[i] = text.length() > MAX_TEXT ? new TextDigest(digest(text)) : text;
+                    size += 2L * Math.min(text.length(), MAX_TEXT);
+                } else if (o != null) {
+                    this.sources[i] = new WeakReference<Object>(o);
+                }
+                size += SOURCE_SIZE;
+            }
+            this.value = value;
+            this.size = size;
+        }
+
+        boolean matches(Object[] other) {
+            if (sources.length != other.length) return false;
+            for (int i = 0; i < sources.length; i++) {
+                Object a = sources[i], b = other[i];
+                if (a == null || b == null) {
+                    if (a != b) return false;
+                } else if (a instanceof TextDigest) {
+                    if (!(b instanceof String) || ((String) b).length() <= MAX_TEXT
+                            || !((TextDigest) a).digest.equals(digest((String) b))) return false;
+                } else if (a instanceof String) {
+                    if (!a.equals(b)) return false;
+                } else if (((WeakReference<?>) a).get() != b) {
+                    return false;                   // Different data, or ours has been collected
+                }
+            }
+            return true;
+        }
+    }
+
+    /* Stands in for a long string */
+    private static class TextDigest {
+        final String digest;
+
+        TextDigest(String digest) {
+            this.digest = digest;
+        }
+    }
+}
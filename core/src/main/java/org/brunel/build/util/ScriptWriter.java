@@ -19,33 +19,49 @@ package org.brunel.build.util;
 
 import org.brunel.data.Data;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.util.Arrays;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
 
 /**
- * A class to make it easier to output Javascript
+ * A class to make it easier to output Javascript.
+ * Output is accumulated in an unsynchronized builder, and the position of the last line break is tracked as text is
+ * added, so finding the current column does not require searching the output.
+ * If a target writer is given, the output is passed on to it in chunks as it is generated instead of being kept.
+ * When not readable, comments, blank lines and the white space at the start of lines are not written.
  */
 public class ScriptWriter {
 
-    private final int lineMaxLength;
-    private static final Set<Character> NO_SPACE_BEFORE = new HashSet<Character>(Arrays.asList(':', ',', ';', '(', ')', ']'));
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+    private static final int CHUNK_SIZE = 8 * 1024;        // When streaming, how much to collect before writing
+    private static final String NO_SPACE_BEFORE = ":,;()]";
     private static final String INDENT = "  ";
-    private final PrintWriter out;
-    private final StringWriter base;
+    private final int lineMaxLength;
+    private final StringBuilder out;
+    private final Writer target;                            // If not null, where the output is sent
+    private long written = 0;                               // Characters already sent to the target
+    private long lastNewLine = 0;                           // Position of the last '\n' in the output (0 if none)
     private int consecutiveNewLines = 0;
     private int indentLevel = 0;
     private boolean changed;
     public boolean readable = false;
 
     public ScriptWriter(boolean readableJavascript) {
+        this(readableJavascript, null);
+    }
+
+    /**
+     * Create a writer that streams its output
+     *
+     * @param readableJavascript true for readable output
+     * @param target             if not null, output is written to this as it is generated. Failures to write are
+     *                           thrown as IllegalStateExceptions with the IOException as their cause
+     */
+    public ScriptWriter(boolean readableJavascript, Writer target) {
         readable = readableJavascript;
         lineMaxLength = readable ? 100 : 400;
-        base = new StringWriter();
-        out = new PrintWriter(base);
+        this.target = target;
+        out = new StringBuilder(target == null ? INITIAL_CAPACITY : CHUNK_SIZE + 1024);
         consecutiveNewLines = 1;
     }
 
@@ -61,9 +77,9 @@ public class ScriptWriter {
     }
 
     public ScriptWriter continueOnNextLine(String... before) {
-        for (String s : before) out.print(s);
+        for (String s : before) print(s);
         ln();
-        if (readable) out.print(INDENT);
+        if (readable) out.append(INDENT);
         return this;
     }
 
@@ -75,7 +91,7 @@ public class ScriptWriter {
     public ScriptWriter add(Object... items) {
         // Add indentation if needed
         if (readable && consecutiveNewLines > 0)
-            for (int i = 0; i < indentLevel; i++) out.print(INDENT);
+            for (int i = 0; i < indentLevel; i++) out.append(INDENT);
 
         // Add items
         for (int i = 0; i < items.length; i++) {
@@ -92,11 +108,12 @@ public class ScriptWriter {
             } else {
                 s = Data.format(item, false);
             }
-            if (i > 0 && !NO_SPACE_BEFORE.contains(s.charAt(0))) out.print(" ");
-            out.print(s);
+            if (i > 0 && NO_SPACE_BEFORE.indexOf(s.charAt(0)) < 0) out.append(' ');
+            print(s);
         }
         consecutiveNewLines = 0;
         changed = true;
+        if (target != null && out.length() >= CHUNK_SIZE) send();
         return this;
     }
 
@@ -115,16 +132,19 @@ public class ScriptWriter {
     }
 
     public ScriptWriter ln() {
+        if (!readable && consecutiveNewLines > 0) return this;     // No blank lines
         consecutiveNewLines++;
-        out.println();
+        lastNewLine = written + out.length();
+        out.append('\n');
         changed = true;
+        if (target != null && out.length() >= CHUNK_SIZE) send();
         return this;
     }
 
     public ScriptWriter addQuoted(Object... items) {
         indentMore().indentMore();
         for (int i = 0; i < items.length; i++) {
-            if (i > 0) out.print(readable ? ", " : ",");
+            if (i > 0) out.append(readable ? ", " : ",");
             if (currentColumn() > 77) ln();
             add(quote(items[i]));
         }
@@ -133,12 +153,29 @@ public class ScriptWriter {
     }
 
     private int currentColumn() {
-        base.flush();
-        StringBuffer b = base.getBuffer();
-        int end = b.length() - 1;
-        int eol = b.lastIndexOf("\n");
-        if (eol < 0) eol = 0;
-        return end - eol;
+        return (int) (written + out.length() - 1 - lastNewLine);
+    }
+
+    /* Appends text, keeping track of any line breaks it contains */
+    private void print(String s) {
+        if (!readable) s = stripIndents(s, consecutiveNewLines > 0);
+        int eol = s.lastIndexOf('\n');
+        if (eol >= 0) lastNewLine = written + out.length() + eol;
+        out.append(s);
+    }
+
+    /* Removes white space following line breaks, and at the start if we are at the start of a line */
+    private static String stripIndents(String s, boolean atLineStart) {
+        if (!atLineStart && s.indexOf('\n') < 0) return s;
+        StringBuilder b = new StringBuilder(s.length());
+        boolean skipping = atLineStart;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (skipping && (c == ' ' || c == '\t')) continue;
+            skipping = c == '\n';
+            b.append(c);
+        }
+        return b.toString();
     }
 
     public String quote(Object item) {
@@ -149,7 +186,7 @@ public class ScriptWriter {
         indentMore().indentMore();
         boolean first = true;
         for (Object o : items) {
-            if (!first) out.print(", ");
+            if (!first) out.append(", ");
             if (currentColumn() > lineMaxLength - 4) ln();
             add(quote(o));
             first = false;
@@ -180,8 +217,31 @@ public class ScriptWriter {
     }
 
     public String content() {
-        out.close();
-        return base.toString();
+        if (target != null) throw new IllegalStateException("Content has been written to the target writer");
+        return out.toString();
+    }
+
+    /**
+     * When streaming, writes any pending output to the target writer and flushes it
+     */
+    public void flush() {
+        if (target == null) return;
+        send();
+        try {
+            target.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed writing Javascript", e);
+        }
+    }
+
+    private void send() {
+        try {
+            target.write(out.toString());
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed writing Javascript", e);
+        }
+        written += out.length();
+        out.setLength(0);
     }
 
     public ScriptWriter endStatement() {
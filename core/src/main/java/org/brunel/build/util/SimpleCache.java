@@ -19,8 +19,10 @@ package org.brunel.build.util;
 
 import org.brunel.data.Dataset;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -48,12 +50,30 @@ public class SimpleCache implements DatasetCache {
         return map.get(key);
     }
 
+    /**
+     * The keys currently held, oldest first
+     *
+     * @return a copy of the keys
+     */
+    public synchronized List<String> keys() {
+        return new ArrayList<String>(map.keySet());
+    }
+
+    /**
+     * Called when an entry is dropped to keep memory use down. The default does nothing.
+     *
+     * @param key the key of the dropped entry
+     */
+    protected void evicted(String key) {
+    }
+
     private class MapCache extends LinkedHashMap<String, Dataset> {
         protected boolean removeEldestEntry(Map.Entry<String, Dataset> eldest) {
             synchronized (SimpleCache.this) {
                 if (estimatedMemoryUse > MAX_ESTIMATED_MEMORY) {
                     // This will be removed, so reduce the total memory size
                     estimatedMemoryUse -= eldest.getValue().expectedSize();
+                    evicted(eldest.getKey());
                     return true;
                 } else {
                     return false;
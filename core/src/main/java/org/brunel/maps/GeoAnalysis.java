@@ -3,12 +3,9 @@ package org.brunel.maps;
 import org.brunel.build.util.ScriptWriter;
 import org.brunel.data.Data;
 
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.LineNumberReader;
 import java.text.Normalizer;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -21,17 +18,35 @@ import java.util.regex.Pattern;
  */
 public class GeoAnalysis {
 
+    private static final String FEATURE_SOURCE = "http://brunelvis.org/geo/0.7/";                 // Public files
+    private static final int CACHE_SIZE = 100;                                                   // Mappings to remember
     private static final Pattern PATTERN = Pattern.compile("\\p{InCombiningDiacriticalMarks}+"); // Removes diacretics
-    private static GeoAnalysis INSTANCE;                                                         // The singleton
+
+    private static volatile String simplifiedFeatureSource;                                      // Our own server
 
     /**
      * Gets the singleton instance
      *
      * @return the analysis instance to use
      */
-    public static synchronized GeoAnalysis instance() {
-        if (INSTANCE == null) INSTANCE = new GeoAnalysis();
-        return INSTANCE;
+    public static GeoAnalysis instance() {
+        return Holder.INSTANCE;
+    }
+
+    /* Initialized on first use by the class loader, so later calls need no locking */
+    private static final class Holder {
+        private static final GeoAnalysis INSTANCE = new GeoAnalysis();
+    }
+
+    /**
+     * Use simplified feature files from a server (see {@link GeoSimplifier}) rather than the full detail public ones.
+     * The server must respond to the base URL followed by the file name, ".json" and a "tolerance" query parameter.
+     * This should be set before any maps are built, as built visualizations may be cached
+     *
+     * @param baseURL base for feature file URLs, or null to use the public files
+     */
+    public static void useSimplifiedFeatures(String baseURL) {
+        simplifiedFeatureSource = baseURL;
     }
 
     /**
@@ -55,12 +70,15 @@ public class GeoAnalysis {
         }
 
         // Write out the resulting structure
+        String base = simplifiedFeatureSource;
+        String query = base == null ? "" : "?tolerance=" + GeoSimplifier.toleranceFor(map.totalBounds());
+        if (base == null) base = FEATURE_SOURCE;
         out.add("{").indentMore();
         GeoFile[] files = map.result;
         for (int k = 0; k < files.length; k++) {
             if (k > 0) out.add(",").onNewLine();
             String fileName = files[k].name;
-            String source = Data.quote("http://brunelvis.org/geo/0.7/" + fileName + ".json");
+            String source = Data.quote(base + fileName + ".json" + query);
             out.onNewLine().add(source, ":{").indentMore();
             int i = 0;
             Map<Object, Integer> features = combined.get(fileName);
@@ -75,55 +93,20 @@ public class GeoAnalysis {
         out.indentLess().onNewLine().add("}");
     }
 
-    final Map<String, int[][]> featureMap;                // For each feature, a pair of [fileIndex,featureIndex]
+    final GeoIndex featureMap;                            // For each feature, a pair of [fileIndex,featureIndex]
     final GeoFile[] geoFiles;                             // Feature files we can use
 
-    private GeoAnalysis() {
-        try {
-            // Read in the information file
-            InputStream is = GeoAnalysis.class.getResourceAsStream("/org/brunel/maps/geoindex.txt");
-            LineNumberReader rdr = new LineNumberReader(new InputStreamReader(is, "utf-8"));
-
-            // Read the names of the files and their sizes (in K)
-            String[] fileLine = rdr.readLine().split("\\|");
-            int n = fileLine.length / 3;
-            geoFiles = new GeoFile[n];
-            for (int i = 0; i < n; i++) {
-                geoFiles[i] = new GeoFile(fileLine[3 * i], i, fileLine[3 * i + 1], fileLine[3 * i + 2]);
-            }
-
-            // Read the features
-            featureMap = new HashMap<String, int[][]>();
-            while (true) {
-                String line = rdr.readLine();
-                if (line == null) break;
-                String[] featureLine = line.split("\\|");
-                String name = featureLine[0];
-                int m = featureLine.length - 1;
-                int[][] data = new int[m][2];
-                for (int i = 0; i < m; i++) {
-                    String[] s = featureLine[i + 1].split(":");
-                    data[i][0] = Integer.parseInt(s[0]);
-                    data[i][1] = Integer.parseInt(s[1]);
+    /* Recently built mappings, keyed by the list of names */
+    private final Map<List<Object>, GeoMapping> mappings = Collections.synchronizedMap(
+            new LinkedHashMap<List<Object>, GeoMapping>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<List<Object>, GeoMapping> eldest) {
+                    return size() > CACHE_SIZE;
                 }
-                featureMap.put(name.toLowerCase(), data);
-            }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+            });
 
-        // Add variants of names by normalizing removing accent marks and periods
-        List<String> keys = new ArrayList<String>(featureMap.keySet());
-        for (String s : keys) {
-            String t = removeAccents(s);
-            if (!featureMap.containsKey(t)) {
-                featureMap.put(t, featureMap.get(s));
-            }
-            t = removePeriods(t);
-            if (!featureMap.containsKey(t)) {
-                featureMap.put(t, featureMap.get(s));
-            }
-        }
+    private GeoAnalysis() {
+        featureMap = GeoIndex.load();
+        geoFiles = featureMap.files();
     }
 
     static String removeAccents(String s) {
@@ -138,12 +121,31 @@ public class GeoAnalysis {
     }
 
     /**
-     * For a set of features, returns the mapping to use for them
+     * Whether the name is one of the feature files we map to
+     *
+     * @param name file name, without directory or suffix
+     * @return true if it is a known file
+     */
+    public boolean isFeatureFile(String name) {
+        for (GeoFile f : geoFiles) if (f.name.equals(name)) return true;
+        return false;
+    }
+
+    /**
+     * For a set of features, returns the mapping to use for them.
+     * Recent mappings are remembered, so the same names (as produced by a field's categories) give the same,
+     * shared, mapping; callers must not modify it
      *
      * @param names feature names
      * @return resulting mapping
      */
     public GeoMapping make(Object[] names) {
-        return new GeoMapping(names, this);
+        List<Object> key = Arrays.asList(names.clone());
+        GeoMapping mapping = mappings.get(key);
+        if (mapping == null) {
+            mapping = new GeoMapping(names, this);
+            mappings.put(key, mapping);
+        }
+        return mapping;
     }
 }
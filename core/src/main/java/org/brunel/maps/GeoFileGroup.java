@@ -1,50 +1,70 @@
 package org.brunel.maps;
 
-import java.util.Collection;
-import java.util.HashSet;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.LinkedHashSet;
-import java.util.List;
 import java.util.Set;
 
 /**
- * A set of files that could potentially cover the mapping we need
+ * A set of files that could potentially cover the mapping we need.
+ * Features are identified by index, so the set of features covered is a bit set
  */
 class GeoFileGroup {
-    private static final int MAX_FILES = 3;                 // No more files than this
+    static final int MAX_FILES = 3;                         // No more files than this
     public final Set<GeoFile> files;
     private final int requiredFeatureCount;
-    private final Set<Object> featureSet;
-    private Double area;
+    private final BitSet featureSet;
+    private final int featureCount;
+    private final double[] bounds;
 
-    public GeoFileGroup(int requiredFeatureCount, Collection<GeoFile> files, Collection<?> features) {
+    public GeoFileGroup(int requiredFeatureCount) {
+        this(requiredFeatureCount, Collections.<GeoFile>emptySet(), new BitSet(), null);
+    }
+
+    private GeoFileGroup(int requiredFeatureCount, Set<GeoFile> files, BitSet featureSet, double[] bounds) {
         this.requiredFeatureCount = requiredFeatureCount;
-        this.files = new LinkedHashSet<GeoFile>(files);
-        this.featureSet = new HashSet<Object>(features);
+        this.files = files;
+        this.featureSet = featureSet;
+        this.featureCount = featureSet.cardinality();
+        this.bounds = bounds;
     }
 
-    public GeoFileGroup add(GeoFile file, List<?> features) {
+    public GeoFileGroup add(GeoFile file, BitSet features) {
         if (files.contains(file)) return null;                      // Already included
-        Set<Object> combinedFeatures = new HashSet<Object>(featureSet);
-        if (!combinedFeatures.addAll(features)) return null;        // if not change, don't use this
-        Set<GeoFile> combinedFiles = new HashSet<GeoFile>(files);
+        BitSet combinedFeatures = (BitSet) featureSet.clone();
+        combinedFeatures.or(features);
+        if (combinedFeatures.cardinality() == featureCount) return null;    // if not change, don't use this
+        Set<GeoFile> combinedFiles = new LinkedHashSet<GeoFile>(files);
         combinedFiles.add(file);
-        return new GeoFileGroup(requiredFeatureCount, combinedFiles, combinedFeatures);
+        return new GeoFileGroup(requiredFeatureCount, combinedFiles, combinedFeatures, union(bounds, file.bounds));
     }
 
-    public boolean cannotImprove(GeoFileGroup best, int maxFeaturesPerFile) {
-        if (featureSet.size() == requiredFeatureCount) return true;         // Nothing new can get added
-        if (files.size() == MAX_FILES) return true;                         // Limited number of files
+    public int featureCount() {
+        return featureCount;
+    }
+
+    public int remainingFiles() {
+        return MAX_FILES - files.size();
+    }
 
-        // An upper bound on the number of features we could add
-        int upperFeatureBound = featureSet.size() + (MAX_FILES - files.size()) * maxFeaturesPerFile;
-        return upperFeatureBound < best.featureSet.size();
+    /**
+     * Whether adding more files to this group could possibly give a better group than the best one
+     *
+     * @param best               the best group so far
+     * @param maxFeaturesToAdd   an upper bound on the number of features the remaining files could add
+     * @return true if there is no point in searching further
+     */
+    public boolean cannotImprove(GeoFileGroup best, int maxFeaturesToAdd) {
+        if (featureCount == requiredFeatureCount) return true;      // Nothing new can get added
+        if (files.size() == MAX_FILES) return true;                 // Limited number of files
+        return featureCount + maxFeaturesToAdd < best.featureCount;
     }
 
     public boolean isBetter(GeoFileGroup o) {
         if (o == this) return false;
 
         // More features are better
-        int d = featureSet.size() - o.featureSet.size();
+        int d = featureCount - o.featureCount;
         if (d < 0) return false;
         if (d > 0) return true;
 
@@ -55,13 +75,7 @@ class GeoFileGroup {
     }
 
     private double area() {
-        if (files.isEmpty()) return 0;
-        if (area == null) {
-            double[] bounds = null;
-            for (GeoFile f : files) bounds = union(bounds, f.bounds);
-            area = (bounds[1] - bounds[0]) * (bounds[3] - bounds[2]);
-        }
-        return area;
+        return bounds == null ? 0 : (bounds[1] - bounds[0]) * (bounds[3] - bounds[2]);
     }
 
     private double[] union(double[] a, double[] b) {
@@ -74,6 +88,6 @@ class GeoFileGroup {
     }
 
     public String toString() {
-        return files + ":" + featureSet.size() + "/" + requiredFeatureCount;
+        return files + ":" + featureCount + "/" + requiredFeatureCount;
     }
 }
@@ -0,0 +1,500 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.maps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only table of normalized feature names, each mapping to a list of [fileIndex,featureIndex] pairs.
+ * The table is a sorted string table in a compact binary format, generated at build time from the text
+ * index (run this class's main method) so it can be memory-mapped and searched without any parsing.
+ * If the binary resource is missing, the text index is compiled into the same format in memory.
+ *
+ * The layout is (all integers big-endian):
+ * <pre>
+ *     MAGIC VERSION
+ *     fileCount (name bounds size)*        -- strings are a short length followed by UTF-8 bytes
+ *     keyCount keyOffset[keyCount+1]       -- offsets of each key within the key bytes
+ *     valueOffset[keyCount]                -- offsets of each key's values within the value table
+ *     prefixLength[keyCount]               -- length of the prefix each key shares with the one before it
+ *     nextShorter[keyCount]                -- index of the next key with a shorter shared prefix (or keyCount)
+ *     keyBytes                             -- UTF-8 names, sorted by unsigned byte order
+ *     valueCount value[valueCount]         -- for each key: n, then n pairs of (file, feature)
+ * </pre>
+ */
+public class GeoIndex {
+
+    static final String TEXT = "/org/brunel/maps/geoindex.txt";
+    static final String BINARY = "/org/brunel/maps/geoindex.bin";
+
+    private static final int MAGIC = 0x42474958;                // "BGIX"
+    private static final int VERSION = 2;
+    private static final Charset UTF8 = Charset.forName("utf-8");
+    private static final int FAR = 1 << 20;                    // An edit distance too large to be of interest
+
+    /**
+     * Compiles a text index into the binary format
+     *
+     * @param args the text index file and the binary file to write
+     * @throws IOException if the files cannot be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        InputStream in = new FileInputStream(args[0]);
+        try {
+            byte[] bytes = compile(in);
+            File target = new File(args[1]);
+            File parent = target.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+                throw new IOException("Cannot create directory: " + parent);
+            OutputStream out = new FileOutputStream(target);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads the index from the classpath, preferring the prebuilt binary version
+     *
+     * @return the index to use
+     */
+    static GeoIndex load() {
+        try {
+            URL url = GeoIndex.class.getResource(BINARY);
+            if (url != null) return read(url);
+            InputStream in = GeoIndex.class.getResourceAsStream(TEXT);
+            try {
+                return new GeoIndex(ByteBuffer.wrap(compile(in)));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads a binary index. Files are memory-mapped; other sources (such as jar entries) are read into memory
+     *
+     * @param url location of the binary index
+     * @return the index
+     * @throws IOException if it cannot be read
+     */
+    static GeoIndex read(URL url) throws IOException {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                RandomAccessFile file = new RandomAccessFile(new File(url.toURI()), "r");
+                try {
+                    // The mapping remains valid after the channel is closed
+                    return new GeoIndex(file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+                } finally {
+                    file.close();
+                }
+            } catch (URISyntaxException e) {
+                // Fall through and read it as a stream
+            }
+        }
+        InputStream in = url.openStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(256 * 1024);
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0; ) out.write(buffer, 0, n);
+            return new GeoIndex(ByteBuffer.wrap(out.toByteArray()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Converts the text index format into the binary one.
+     * The first line of the text is a list of (name|bounds|size) triples; each following line is a feature name
+     * followed by file:feature pairs, all separated by '|'. Names are lower-cased, and variants with accent marks and
+     * periods removed are added when they do not clash with an existing name
+     *
+     * @param text text index
+     * @return binary index
+     * @throws IOException if the text cannot be read
+     */
+    static byte[] compile(InputStream text) throws IOException {
+        LineNumberReader rdr = new LineNumberReader(new InputStreamReader(text, UTF8));
+
+        // Read the names of the files and their sizes (in K)
+        String[] files = rdr.readLine().split("\\|");
+
+        // Read the features
+        Map<String, int[][]> features = new LinkedHashMap<String, int[][]>();
+        while (true) {
+            String line = rdr.readLine();
+            if (line == null) break;
+            String[] featureLine = line.split("\\|");
+            int m = featureLine.length - 1;
+            int[][] data = new int[m][2];
+            for (int i = 0; i < m; i++) {
+                String[] s = featureLine[i + 1].split(":");
+                data[i][0] = Integer.parseInt(s[0]);
+                data[i][1] = Integer.parseInt(s[1]);
+            }
+            features.put(featureLine[0].toLowerCase(), data);
+        }
+
+        // Add variants of names by normalizing removing accent marks and periods
+        List<String> names = new ArrayList<String>(features.keySet());
+        for (String s : names) {
+            String t = GeoAnalysis.removeAccents(s);
+            if (!features.containsKey(t)) features.put(t, features.get(s));
+            t = GeoAnalysis.removePeriods(t);
+            if (!features.containsKey(t)) features.put(t, features.get(s));
+        }
+
+        // Sort the keys by their encoded bytes, which is the order we search in
+        int n = features.size();
+        final byte[][] keys = new byte[n][];
+        Integer[] order = new Integer[n];
+        int[][][] values = new int[n][][];
+        int i = 0;
+        for (Map.Entry<String, int[][]> e : features.entrySet()) {
+            keys[i] = e.getKey().getBytes(UTF8);
+            values[i] = e.getValue();
+            order[i] = i++;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return compareBytes(keys[a], keys[b]);
+            }
+        });
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(features.size() * 24);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(files.length / 3);
+        for (String s : Arrays.copyOf(files, files.length / 3 * 3)) {
+            byte[] b = s.getBytes(UTF8);
+            out.writeShort(b.length);
+            out.write(b);
+        }
+
+        out.writeInt(n);
+        int keyOffset = 0;
+        for (Integer k : order) {
+            out.writeInt(keyOffset);
+            keyOffset += keys[k].length;
+        }
+        out.writeInt(keyOffset);
+        int valueOffset = 0;
+        for (Integer k : order) {
+            out.writeInt(valueOffset);
+            valueOffset += 1 + 2 * values[k].length;
+        }
+        int[] prefixLength = new int[n];
+        for (int j = 1; j < n; j++) prefixLength[j] = commonPrefix(keys[order[j - 1]], keys[order[j]]);
+        for (int length : prefixLength) out.writeInt(length);
+        for (int next : nextShorter(prefixLength)) out.writeInt(next);
+        for (Integer k : order) out.write(keys[k]);
+        out.writeInt(valueOffset);
+        for (Integer k : order) {
+            out.writeInt(values[k].length);
+            for (int[] pair : values[k]) {
+                out.writeInt(pair[0]);
+                out.writeInt(pair[1]);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /*
+     * For each item, the index of the next item with a smaller value. All keys in between share at least as long a
+     * prefix as the item, so we can use this to jump over whole sub-trees of keys without looking at them
+     */
+    private static int[] nextShorter(int[] prefixLength) {
+        int n = prefixLength.length;
+        int[] result = new int[n];
+        int[] stack = new int[n];
+        int top = 0;
+        for (int i = n - 1; i >= 0; i--) {
+            while (top > 0 && prefixLength[stack[top - 1]] >= prefixLength[i]) top--;
+            result[i] = top == 0 ? n : stack[top - 1];
+            stack[top++] = i;
+        }
+        return result;
+    }
+
+    private static int commonPrefix(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) if (a[i] != b[i]) return i;
+        return n;
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int d = (a[i] & 0xff) - (b[i] & 0xff);
+            if (d != 0) return d;
+        }
+        return a.length - b.length;
+    }
+
+    private final ByteBuffer buffer;                            // The binary index (shared; only absolute reads)
+    private final GeoFile[] files;                              // Decoded file information
+    private final int keyCount;                                 // Number of names
+    private final int keyOffsets;                               // Position of the key offset table
+    private final int valueOffsets;                             // Position of the value offset table
+    private final int prefixLengths;                            // Position of the shared prefix length table
+    private final int nextShorter;                              // Position of the next shorter prefix table
+    private final int keyBytes;                                 // Position of the key bytes
+    private final int values;                                   // Position of the value table
+
+    private GeoIndex(ByteBuffer buffer) {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IllegalStateException("Geographic index is not in the expected format");
+
+        int p = 8;
+        int fileCount = buffer.getInt(p);
+        p += 4;
+        String[] s = new String[3];
+        files = new GeoFile[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            for (int j = 0; j < 3; j++) {
+                int len = buffer.getShort(p) & 0xffff;
+                s[j] = new String(bytes(p + 2, len), UTF8);
+                p += 2 + len;
+            }
+            files[i] = new GeoFile(s[0], i, s[1], s[2]);
+        }
+
+        keyCount = buffer.getInt(p);
+        keyOffsets = p + 4;
+        valueOffsets = keyOffsets + 4 * (keyCount + 1);
+        prefixLengths = valueOffsets + 4 * keyCount;
+        nextShorter = prefixLengths + 4 * keyCount;
+        keyBytes = nextShorter + 4 * keyCount;
+        values = keyBytes + buffer.getInt(keyOffsets + 4 * keyCount) + 4;
+    }
+
+    /**
+     * The feature files in this index, in index order
+     *
+     * @return shared array of files
+     */
+    GeoFile[] files() {
+        return files;
+    }
+
+    /**
+     * Number of names in the index
+     *
+     * @return name count
+     */
+    int size() {
+        return keyCount;
+    }
+
+    /**
+     * Find the features for a normalized (lower case) name
+     *
+     * @param name the name to look for
+     * @return array of [fileIndex,featureIndex] pairs, or null if the name is not in the index
+     */
+    int[][] get(String name) {
+        byte[] key = name.getBytes(UTF8);
+        int low = 0, high = keyCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compareKey(mid, key);
+            if (c < 0) low = mid + 1;
+            else if (c > 0) high = mid - 1;
+            else return valuesAt(mid);
+        }
+        return null;
+    }
+
+    /**
+     * Find the features for names starting with the given text, as long as they all refer to the same features
+     *
+     * @param prefix the start of a normalized name
+     * @return array of [fileIndex,featureIndex] pairs, or null if no name, or names for different features, match
+     */
+    int[][] getByPrefix(String prefix) {
+        byte[] key = prefix.getBytes(UTF8);
+        int first = lowerBound(key);
+        int[][] result = null;
+        for (int i = first; i < keyCount && startsWith(i, key); i++) {
+            int[][] values = valuesAt(i);
+            if (result == null) result = values;
+            else if (!Arrays.deepEquals(result, values)) return null;          // Ambiguous
+        }
+        return result;
+    }
+
+    /**
+     * Find the features for the name closest to the given one, allowing a limited number of single byte insertions,
+     * deletions and substitutions (Levenshtein distance on the encoded names).
+     * The sorted keys are treated as a trie: edit distance rows are shared between keys with a common prefix, and a
+     * whole range of keys is skipped once their common prefix is too far from the target
+     *
+     * @param name        a normalized name
+     * @param maxDistance the largest edit distance to accept
+     * @return array of [fileIndex,featureIndex] pairs, or null if no name matches, or if the closest names are for
+     * different features
+     */
+    int[][] getClosest(String name, int maxDistance) {
+        byte[] target = name.getBytes(UTF8);
+        int m = target.length;
+        int[][] rows = new int[m + maxDistance + 2][m + 1];       // Rows for each depth into the current key
+        for (int j = 0; j <= m; j++) rows[0][j] = Math.min(j, FAR);
+
+        int limit = maxDistance;                                   // Distances above this cannot be used
+        int[][] result = null;
+        boolean ambiguous = false;
+
+        int validRows = 0;                                         // Rows (after row 0) valid for the current path
+        int i = 0;
+        while (i < keyCount) {
+            int start = keyBytes + buffer.getInt(keyOffsets + 4 * i);
+            int length = buffer.getInt(keyOffsets + 4 * i + 4) - buffer.getInt(keyOffsets + 4 * i);
+
+            // Rows are still valid for the prefix this key shares with the previous one we looked at
+            int depth = Math.min(validRows, buffer.getInt(prefixLengths + 4 * i));
+
+            boolean pruned = false;
+            int maxDepth = Math.min(length, m + limit);
+            while (depth < maxDepth) {
+                byte b = buffer.get(start + depth);
+                int[] above = rows[depth], row = rows[++depth];
+                // Only cells within 'limit' of the diagonal can be small enough; the ones just outside are marked as
+                // too far, which is safe because the true values there are larger than the limit
+                int lo = Math.max(1, depth - limit), hi = Math.min(m, depth + limit);
+                row[0] = depth;
+                row[lo - 1] = lo == 1 ? depth : FAR;
+                if (hi < m) row[hi + 1] = FAR;
+                int smallest = lo == 1 ? depth : FAR;
+                for (int j = lo; j <= hi; j++) {
+                    int cost = above[j - 1] + (target[j - 1] == b ? 0 : 1);
+                    cost = Math.min(cost, Math.min(above[j], row[j - 1]) + 1);
+                    row[j] = cost;
+                    if (cost < smallest) smallest = cost;
+                }
+                if (smallest > limit) {
+                    // No key starting with these bytes can be close enough, so skip them all
+                    i = skipPrefix(i, depth);
+                    validRows = depth - 1;
+                    pruned = true;
+                    break;
+                }
+            }
+            if (pruned) continue;
+            validRows = depth;
+
+            if (depth == length && Math.abs(length - m) <= limit && rows[depth][m] <= limit) {
+                int[][] values = valuesAt(i);
+                if (rows[depth][m] < limit || result == null) {
+                    // Strictly better than anything so far
+                    limit = rows[depth][m];
+                    result = values;
+                    ambiguous = false;
+                } else if (!Arrays.deepEquals(result, values)) {
+                    ambiguous = true;
+                }
+            }
+            i++;
+        }
+        return ambiguous ? null : result;
+    }
+
+    /* The index of the first key that is not less than the target */
+    private int lowerBound(byte[] key) {
+        int low = 0, high = keyCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareKey(mid, key) < 0) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /* The index of the first key after 'index' that does not share its first 'depth' bytes */
+    private int skipPrefix(int index, int depth) {
+        int i = index + 1;
+        while (i < keyCount && buffer.getInt(prefixLengths + 4 * i) >= depth) i = buffer.getInt(nextShorter + 4 * i);
+        return i;
+    }
+
+    private boolean startsWith(int index, byte[] prefix) {
+        int start = keyBytes + buffer.getInt(keyOffsets + 4 * index);
+        int len = buffer.getInt(keyOffsets + 4 * index + 4) - buffer.getInt(keyOffsets + 4 * index);
+        if (len < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) if (buffer.get(start + i) != prefix[i]) return false;
+        return true;
+    }
+
+    /* Compares the key at the given index to the target bytes */
+    private int compareKey(int index, byte[] key) {
+        int start = keyBytes + buffer.getInt(keyOffsets + 4 * index);
+        int len = buffer.getInt(keyOffsets + 4 * index + 4) - buffer.getInt(keyOffsets + 4 * index);
+        int n = Math.min(len, key.length);
+        for (int i = 0; i < n; i++) {
+            int d = (buffer.get(start + i) & 0xff) - (key[i] & 0xff);
+            if (d != 0) return d;
+        }
+        return len - key.length;
+    }
+
+    private int[][] valuesAt(int index) {
+        int p = values + 4 * buffer.getInt(valueOffsets + 4 * index);
+        int[][] result = new int[buffer.getInt(p)][2];
+        for (int[] pair : result) {
+            pair[0] = buffer.getInt(p += 4);
+            pair[1] = buffer.getInt(p += 4);
+        }
+        return result;
+    }
+
+    private byte[] bytes(int start, int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) b[i] = buffer.get(start + i);
+        return b;
+    }
+
+}
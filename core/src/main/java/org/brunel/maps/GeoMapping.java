@@ -2,14 +2,11 @@ package org.brunel.maps;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.BitSet;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.TreeMap;
 
 /**
@@ -17,12 +14,10 @@ import java.util.TreeMap;
  */
 public class GeoMapping {
 
-    private final GeoFile[] targetFiles;                                            // The files that match features we care about
-    private final List<FeatureDetail>[] targetFeatures;                             // The features contained in each target file
+    private static final int MIN_FUZZY_LENGTH = 5;                                  // Shorter names must match exactly
+
     public final Map<Object, int[]> mapping = new TreeMap<Object, int[]>();         // Feature -> [file, featureKey]
     public final List<Object> unmatched = new ArrayList<Object>();                  // Features we did not map
-
-    private GeoFileGroup best;                                                    // We search to determine this
     public final GeoFile[] result;                                                  // The files to use
 
     /**
@@ -35,8 +30,8 @@ public class GeoMapping {
     GeoMapping(Object[] names, GeoAnalysis geoAnalysis) {
         // Search our feature files for potential maps
         Map<Integer, List<FeatureDetail>> potential = findAllMappings(names, geoAnalysis);
-        targetFiles = new GeoFile[potential.size()];
-        targetFeatures = new List[potential.size()];
+        GeoFile[] targetFiles = new GeoFile[potential.size()];
+        List<FeatureDetail>[] targetFeatures = new List[potential.size()];
         int index = 0;
         for (Map.Entry<Integer, List<FeatureDetail>> e : potential.entrySet()) {
             targetFiles[index] = geoAnalysis.geoFiles[e.getKey()];
@@ -45,7 +40,7 @@ public class GeoMapping {
         }
 
         // Calculate the best collection of files for those features.
-        searchForBestSubset();
+        GeoFileGroup best = new Search(targetFiles, targetFeatures).best;
         result = best.files.toArray(new GeoFile[best.files.size()]);
         Arrays.sort(result);
 
@@ -76,27 +71,6 @@ public class GeoMapping {
         };
     }
 
-    private void searchForBestSubset() {
-        //Count the number of features we can match
-        Set<FeatureDetail> unmatched = new HashSet<FeatureDetail>();
-        for (List<FeatureDetail> f : targetFeatures)
-            unmatched.addAll(f);
-
-        int N = unmatched.size();
-        best = new GeoFileGroup(N, Collections.<GeoFile>emptySet(), Collections.emptySet());
-
-        // Create list of possible ones to use, sorted with the most features first
-
-        List<Integer> possibles = new ArrayList<Integer>();
-        for (int i = 0; i < targetFiles.length; i++) possibles.add(i);
-        Collections.sort(possibles, new Comparator<Integer>() {
-            public int compare(Integer a, Integer b) {
-                return targetFeatures[b].size() - targetFeatures[a].size();
-            }
-        });
-        searchForBestAdditions(best, possibles);
-    }
-
     private Map<Integer, List<FeatureDetail>> findAllMappings(Object[] names, GeoAnalysis geoAnalysis) {
         Map<Integer, List<FeatureDetail>> contained = new HashMap<Integer, List<FeatureDetail>>();
         for (Object s : names) {
@@ -118,31 +92,33 @@ public class GeoMapping {
         return contained;
     }
 
-    // Find a match, if necessary by removing accent marks and periods
-    private int[][] findFeature(Object key, Map<String, int[][]> featureMap) {
+    // Find a match, if necessary by removing accent marks and periods, and then by looking for similar names
+    private int[][] findFeature(Object key, GeoIndex featureMap) {
         String s = key.toString().toLowerCase();
         int[][] result = featureMap.get(s);
         if (result != null) return result;
-        s = GeoAnalysis.removeAccents(s);
-        result = featureMap.get(s);
+        if (!isAscii(s)) {
+            s = GeoAnalysis.removeAccents(s);
+            result = featureMap.get(s);
+            if (result != null) return result;
+        }
+        if (s.indexOf('.') >= 0) {
+            s = GeoAnalysis.removePeriods(s);
+            result = featureMap.get(s);
+            if (result != null) return result;
+        }
+
+        // Short names are usually abbreviations, where a near miss is more likely to be wrong than right
+        s = s.trim();
+        if (s.length() < MIN_FUZZY_LENGTH) return null;
+        result = featureMap.getByPrefix(s);
         if (result != null) return result;
-        s = GeoAnalysis.removePeriods(s);
-        return featureMap.get(s);
+        return featureMap.getClosest(s, s.length() < 2 * MIN_FUZZY_LENGTH ? 1 : 2);
     }
 
-    // Recursively search for the best files to add
-    private void searchForBestAdditions(GeoFileGroup current, List<Integer> possibles) {
-        if (current.isBetter(best)) best = current;                     // If we are the best, update
-        if (possibles.isEmpty()) return;                                // No more we can do
-        int maxImprovement = targetFeatures[possibles.get(0)].size();   // Additions can at best add this many
-        if (current.cannotImprove(best, maxImprovement)) return;        // If we cannot get better, be done
-        LinkedList<Integer> working = new LinkedList<Integer>(possibles);
-
-        while (!working.isEmpty()) {
-            int k = working.removeFirst();
-            GeoFileGroup trial = current.add(targetFiles[k], targetFeatures[k]);
-            if (trial != null) searchForBestAdditions(trial, working);
-        }
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) if (s.charAt(i) > 127) return false;
+        return true;
     }
 
     private static class FeatureDetail {
@@ -167,4 +143,92 @@ public class GeoMapping {
         }
     }
 
+    /*
+     * This is a maximum coverage problem, which is NP-hard in general, but we allow at most GeoFileGroup.MAX_FILES files
+     * so an exhaustive search is polynomial. We make it fast by using bit sets for the features, and pruning with a bound
+     * based on the sizes of the largest remaining files. A greedy solution gives a good bound before the search starts,
+     * but the search itself runs in the usual order so that ties are resolved the same way as they always have been.
+     * The search state lives only as long as this object, so cached mappings do not hold on to it.
+     */
+    private static final class Search {
+        private final GeoFile[] targetFiles;                                    // The files that match our features
+        private final BitSet[] targetFeatureSets;                               // Feature indices for each target file
+        private final int[] possibles;                                          // Target files, largest first
+        private final int[] possibleSizes;                                      // Feature counts for the possibles
+        private GeoFileGroup best;                                              // We search to determine this
+        private GeoFileGroup bound;                                             // Best known solution, for pruning
+
+        Search(GeoFile[] targetFiles, final List<FeatureDetail>[] targetFeatures) {
+            this.targetFiles = targetFiles;
+
+            // Give each feature an index and record which ones each file contains
+            Map<Object, Integer> featureIndex = new HashMap<Object, Integer>();
+            for (List<FeatureDetail> f : targetFeatures)
+                for (FeatureDetail d : f)
+                    if (!featureIndex.containsKey(d.name)) featureIndex.put(d.name, featureIndex.size());
+            targetFeatureSets = new BitSet[targetFiles.length];
+            for (int i = 0; i < targetFiles.length; i++) {
+                targetFeatureSets[i] = new BitSet(featureIndex.size());
+                for (FeatureDetail d : targetFeatures[i]) targetFeatureSets[i].set(featureIndex.get(d.name));
+            }
+
+            // Create list of possible ones to use, sorted with the most features first
+            Integer[] order = new Integer[targetFiles.length];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return targetFeatures[b].size() - targetFeatures[a].size();
+                }
+            });
+            possibles = new int[order.length];
+            possibleSizes = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                possibles[i] = order[i];
+                possibleSizes[i] = targetFeatures[order[i]].size();
+            }
+
+            GeoFileGroup empty = new GeoFileGroup(featureIndex.size());
+            best = empty;
+            bound = greedySolution(empty);
+            searchForBestAdditions(empty, 0);
+        }
+
+        // Repeatedly add the file that adds the most features; this gives a good bound to start the search with
+        private GeoFileGroup greedySolution(GeoFileGroup current) {
+            GeoFileGroup result = current;
+            while (current.remainingFiles() > 0) {
+                GeoFileGroup next = null;
+                for (int k : possibles) {
+                    GeoFileGroup trial = current.add(targetFiles[k], targetFeatureSets[k]);
+                    if (trial != null && (next == null || trial.featureCount() > next.featureCount())) next = trial;
+                }
+                if (next == null) break;
+                if (next.isBetter(result)) result = next;
+                current = next;
+            }
+            return result;
+        }
+
+        // Search combinations of the possible files, starting at the given index, for the best files to add
+        private void searchForBestAdditions(GeoFileGroup current, int from) {
+            if (current.isBetter(best)) {                                   // If we are the best, update
+                best = current;
+                if (best.isBetter(bound)) bound = best;
+            }
+            for (int i = from; i < possibles.length; i++) {
+                // Files are in decreasing size order, so once we cannot improve, later ones cannot either
+                if (current.cannotImprove(bound, maxAdditions(i, current.remainingFiles()))) return;
+                int k = possibles[i];
+                GeoFileGroup trial = current.add(targetFiles[k], targetFeatureSets[k]);
+                if (trial != null) searchForBestAdditions(trial, i + 1);
+            }
+        }
+
+        // Upper bound on the features added by using 'count' files from the possibles starting at 'from'
+        private int maxAdditions(int from, int count) {
+            int n = 0;
+            for (int i = from; i < from + count && i < possibleSizes.length; i++) n += possibleSizes[i];
+            return n;
+        }
+    }
 }
@@ -110,31 +110,9 @@ public class GeoProjection {
         // The center in screen coords
         String translateToCenter = ".translate([" + width + "/2, " + height + "/2])";
 
-        // Finding the center is tricky because we cannot invert the transform
-        // so we have to search for it
-        double projectedCenterY = (ext[2] + ext[3]) / 2;
-        double y = 0, dy = 9e99;
-        for (int i = -90; i < 90; i++) {
-            double[] p = WINKEL3.transform((x1 + x2) / 2, i);
-            double dp = Math.abs(p[1] - projectedCenterY);
-            if (dp < dy) {
-                dy = dp;
-                y = i;
-            }
-        }
-
-        double projectedCenterX = (ext[0] + ext[1]) / 2;
-        double x = 0, dx = 9e99;
-        for (int i = -180; i < 180; i++) {
-            double[] p = WINKEL3.transform(i, y);
-            double dp = Math.abs(p[0] - projectedCenterX);
-            if (dp < dx) {
-                dx = dp;
-                x = i;
-            }
-        }
-
-        String center = ".center([" + F.format(x) + ", " + F.format(y) + "])";
+        // We find the center in projected space, and then invert the projection
+        double[] c = WINKEL3.inverse((ext[0] + ext[1]) / 2, (ext[2] + ext[3]) / 2);
+        String center = ".center([" + F.format(c[0]) + ", " + F.format(c[1]) + "])";
         return winkelTripleFunctionName + "()"
                 + LN + translateToCenter
                 + LN + scale
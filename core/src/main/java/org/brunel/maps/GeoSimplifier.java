@@ -0,0 +1,515 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.maps;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reduces the size of GeoJSON feature files so they are quicker to send and draw.
+ * Lines and polygon rings are simplified using the Douglas-Peucker algorithm, and all coordinates are rounded to a
+ * precision that matches the tolerance. The topology is kept: lines and rings are split into arcs at the junctions where
+ * they stop following each other, and each arc is simplified once, so borders shared by neighbouring features stay
+ * identical and no gaps or overlaps appear between them. Rings and polygons that become too small to draw are removed, but every
+ * feature keeps some geometry so that data can still be matched to it. Other content (such as properties) is unchanged.
+ */
+public class GeoSimplifier {
+
+    private static final double MIN_TOLERANCE = 1e-5;               // About a meter at the equator
+    private static final double MAX_TOLERANCE = 1;                  // A degree
+    private static final double PIXELS = 4096;                      // Detail needed across the map (allows zooming)
+
+    /**
+     * A suitable tolerance for maps covering the given bounds. It is always a power of two, so similar maps share
+     * the same simplified files
+     *
+     * @param bounds bounds as [minX, maxX, minY, maxY] in degrees
+     * @return tolerance to use
+     */
+    public static double toleranceFor(double[] bounds) {
+        double extent = bounds == null ? 360 : Math.max(bounds[1] - bounds[0], bounds[3] - bounds[2]);
+        return validTolerance(extent / PIXELS);
+    }
+
+    /**
+     * Ensures the tolerance is in a sensible range, rounding it down to a power of two
+     *
+     * @param tolerance suggested tolerance
+     * @return tolerance to use
+     */
+    public static double validTolerance(double tolerance) {
+        if (!(tolerance > MIN_TOLERANCE)) tolerance = MIN_TOLERANCE;      // Also catches NaN
+        tolerance = Math.min(tolerance, MAX_TOLERANCE);
+        return Math.pow(2, Math.floor(Math.log(tolerance) / Math.log(2)));
+    }
+
+    /**
+     * Simplifies a GeoJSON feature collection
+     *
+     * @param in        the GeoJSON source
+     * @param tolerance the largest distance, in degrees, that a simplified line can be from the original
+     * @return the simplified GeoJSON
+     */
+    public static String simplify(Reader in, double tolerance) {
+        JsonObject source = new JsonParser().parse(in).getAsJsonObject();
+        GeoSimplifier simplifier = new GeoSimplifier(tolerance);
+        simplifier.findJunctions(source);
+        simplifier.writeObject(source);
+        return simplifier.out.toString();
+    }
+
+    private final double tolerance;                                 // Maximum distance from original lines
+    private final int digits;                                       // Decimal digits to keep
+    private final double scale;                                     // 10 ^ digits
+    private final StringBuilder out = new StringBuilder();
+    private final Gson gson = new Gson();
+    private final Map<Point, Node> nodes = new HashMap<Point, Node>();           // How each point is connected
+    private final Map<Arc, double[][]> arcs = new HashMap<Arc, double[][]>();    // Simplified arcs
+
+    private GeoSimplifier(double tolerance) {
+        this.tolerance = tolerance;
+        // One more digit than the tolerance needs, so rounding does not add noticeably to the error
+        this.digits = Math.max(0, Math.min(7, (int) Math.ceil(-Math.log10(tolerance)) + 1));
+        this.scale = Math.pow(10, digits);
+    }
+
+    /* Records how the points in all lines and rings connect, so we know where shared paths start and end */
+    private void findJunctions(JsonObject object) {
+        String type = object.has("type") ? object.get("type").getAsString() : "";
+        for (Map.Entry<String, JsonElement> e : object.entrySet()) {
+            JsonElement value = e.getValue();
+            if ((e.getKey().equals("features") || e.getKey().equals("geometries")) && value.isJsonArray()) {
+                for (JsonElement item : value.getAsJsonArray())
+                    if (item.isJsonObject()) findJunctions(item.getAsJsonObject());
+            } else if (e.getKey().equals("geometry") && value.isJsonObject()) {
+                findJunctions(value.getAsJsonObject());
+            } else if (e.getKey().equals("coordinates")) {
+                JsonArray coordinates = value.getAsJsonArray();
+                if (type.equals("LineString")) {
+                    addLine(points(coordinates));
+                } else if (type.equals("MultiLineString")) {
+                    for (JsonElement line : coordinates) addLine(points(line.getAsJsonArray()));
+                } else if (type.equals("Polygon")) {
+                    for (JsonElement ring : coordinates) addRing(points(ring.getAsJsonArray()));
+                } else if (type.equals("MultiPolygon")) {
+                    for (JsonElement polygon : coordinates)
+                        for (JsonElement ring : polygon.getAsJsonArray()) addRing(points(ring.getAsJsonArray()));
+                }
+            }
+        }
+    }
+
+    private void addLine(double[][] points) {
+        double[][] line = withoutRepeats(points);
+        for (int i = 0; i < line.length; i++) {
+            Node node = node(line[i]);
+            if (i == 0 || i == line.length - 1) node.junction = true;       // Ends of lines are always kept
+            else node.connect(new Point(line[i - 1]), new Point(line[i + 1]));
+        }
+    }
+
+    private void addRing(double[][] points) {
+        double[][] ring = openRing(points);
+        int n = ring.length;
+        for (int i = 0; i < n; i++)
+            node(ring[i]).connect(new Point(ring[(i + n - 1) % n]), new Point(ring[(i + 1) % n]));
+    }
+
+    private Node node(double[] p) {
+        Point key = new Point(p);
+        Node node = nodes.get(key);
+        if (node == null) {
+            node = new Node();
+            nodes.put(key, node);
+        }
+        return node;
+    }
+
+    private boolean isJunction(double[] p) {
+        Node node = nodes.get(new Point(p));
+        return node == null || node.junction;
+    }
+
+    /* Copies an object, simplifying any geometry found in it */
+    private void writeObject(JsonObject object) {
+        String type = object.has("type") ? object.get("type").getAsString() : "";
+        out.append('{');
+        int i = 0;
+        for (Map.Entry<String, JsonElement> e : object.entrySet()) {
+            if (i++ > 0) out.append(',');
+            out.append(gson.toJson(e.getKey())).append(':');
+            JsonElement value = e.getValue();
+            if (e.getKey().equals("features") && value.isJsonArray()) {
+                writeList(value.getAsJsonArray());                          // Feature collection
+            } else if (e.getKey().equals("geometries") && value.isJsonArray()) {
+                writeList(value.getAsJsonArray());                          // Geometry collection
+            } else if (e.getKey().equals("geometry") && value.isJsonObject()) {
+                writeObject(value.getAsJsonObject());                       // A feature's geometry
+            } else if (e.getKey().equals("coordinates")) {
+                writeCoordinates(type, value.getAsJsonArray());
+            } else {
+                out.append(gson.toJson(value));
+            }
+        }
+        out.append('}');
+    }
+
+    private void writeList(JsonArray items) {
+        out.append('[');
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) out.append(',');
+            JsonElement item = items.get(i);
+            if (item.isJsonObject()) writeObject(item.getAsJsonObject());
+            else out.append(gson.toJson(item));
+        }
+        out.append(']');
+    }
+
+    private void writeCoordinates(String type, JsonArray coordinates) {
+        if (type.equals("Point")) {
+            writePoint(point(coordinates));
+        } else if (type.equals("MultiPoint")) {
+            writePoints(quantize(points(coordinates), false));
+        } else if (type.equals("LineString")) {
+            writePoints(simplifyLine(points(coordinates)));
+        } else if (type.equals("MultiLineString")) {
+            List<double[][]> lines = new ArrayList<double[][]>();
+            for (JsonElement line : coordinates) lines.add(simplifyLine(points(line.getAsJsonArray())));
+            writeParts(lines);
+        } else if (type.equals("Polygon")) {
+            List<double[][]> polygon = simplifyPolygon(coordinates);
+            writeParts(polygon == null ? outline(coordinates) : polygon);
+        } else if (type.equals("MultiPolygon")) {
+            writeMultiPolygon(coordinates);
+        } else {
+            out.append(gson.toJson(coordinates));                   // Unknown -- leave unchanged
+        }
+    }
+
+    private void writeMultiPolygon(JsonArray coordinates) {
+        List<List<double[][]>> polygons = new ArrayList<List<double[][]>>();
+        for (JsonElement p : coordinates) {
+            List<double[][]> polygon = simplifyPolygon(p.getAsJsonArray());
+            if (polygon != null) polygons.add(polygon);
+        }
+
+        if (polygons.isEmpty()) {
+            // Everything was too small; keep the outline of the polygon with the most detail so the feature remains
+            JsonArray largest = null;
+            for (JsonElement p : coordinates) {
+                JsonArray rings = p.getAsJsonArray();
+                if (largest == null || rings.get(0).getAsJsonArray().size() > largest.get(0).getAsJsonArray().size())
+                    largest = rings;
+            }
+            if (largest != null) polygons.add(outline(largest));
+        }
+
+        out.append('[');
+        for (int i = 0; i < polygons.size(); i++) {
+            if (i > 0) out.append(',');
+            writeParts(polygons.get(i));
+        }
+        out.append(']');
+    }
+
+    /* Simplifies the rings of a polygon; returns null if the outer ring is too small to keep */
+    private List<double[][]> simplifyPolygon(JsonArray rings) {
+        List<double[][]> result = new ArrayList<double[][]>();
+        for (int i = 0; i < rings.size(); i++) {
+            double[][] ring = simplifyRing(points(rings.get(i).getAsJsonArray()));
+            if (ring.length >= 4) result.add(ring);
+            else if (i == 0) return null;                           // Outer ring has collapsed
+        }
+        return result;
+    }
+
+    /* The outer ring of a polygon, rounded but not simplified */
+    private List<double[][]> outline(JsonArray rings) {
+        List<double[][]> result = new ArrayList<double[][]>();
+        result.add(quantize(points(rings.get(0).getAsJsonArray()), false));
+        return result;
+    }
+
+    /* Simplifies a line, keeping its ends and any junctions along it */
+    private double[][] simplifyLine(double[][] points) {
+        double[][] line = withoutRepeats(points);
+        if (line.length < 3) return quantize(line, true);
+        List<double[]> result = new ArrayList<double[]>();
+        int start = 0;
+        for (int i = 1; i < line.length; i++)
+            if (i == line.length - 1 || isJunction(line[i])) {
+                addArc(Arrays.copyOfRange(line, start, i + 1), result);
+                start = i;
+            }
+        return result.toArray(new double[result.size()][]);
+    }
+
+    /* Simplifies a closed ring, one arc between junctions at a time */
+    private double[][] simplifyRing(double[][] points) {
+        double[][] ring = openRing(points);
+        int n = ring.length;
+        if (n < 3) return quantize(points, true);
+
+        // Start at a junction. A ring with none is shared whole or not at all, so start at its lowest point, which
+        // any other ring following the same path will also use
+        int start = -1;
+        for (int i = 0; i < n && start < 0; i++) if (isJunction(ring[i])) start = i;
+        if (start < 0) {
+            start = 0;
+            for (int i = 1; i < n; i++) if (compare(ring[i], ring[start]) < 0) start = i;
+        }
+
+        List<double[]> result = new ArrayList<double[]>();
+        int i = start;
+        do {
+            int j = (i + 1) % n;
+            while (j != start && !isJunction(ring[j])) j = (j + 1) % n;
+            int length = (j - i + n - 1) % n + 2;                          // Points from i to j, including both
+            double[][] arc = new double[length][];
+            for (int k = 0; k < length; k++) arc[k] = ring[(i + k) % n];
+            addArc(arc, result);
+            i = j;
+        } while (i != start);
+        return result.toArray(new double[result.size()][]);
+    }
+
+    /*
+     * Simplifies an arc and adds it to the result, which ends with the arc's first point if it is not empty.
+     * An arc and its reverse are simplified the same way, in a standard direction, and only once
+     */
+    private void addArc(double[][] arc, List<double[]> result) {
+        int n = arc.length;
+        int order = compare(arc[0], arc[n - 1]);
+        boolean reverse = order > 0 || order == 0 && n > 2 && compare(arc[1], arc[n - 2]) > 0;
+        Arc key = new Arc(reverse ? reversed(arc) : arc);
+        double[][] simplified = arcs.get(key);
+        if (simplified == null) {
+            simplified = douglasPeucker(key.points);
+            arcs.put(key, simplified);
+        }
+        if (reverse) simplified = reversed(simplified);
+        for (int i = result.isEmpty() ? 0 : 1; i < simplified.length; i++) result.add(simplified[i]);
+    }
+
+    /* Douglas-Peucker simplification followed by rounding */
+    private double[][] douglasPeucker(double[][] points) {
+        int n = points.length;
+        if (n < 3) return quantize(points, true);
+        boolean[] keep = new boolean[n];
+        keep[0] = keep[n - 1] = true;
+
+        // Use an explicit stack of [start, end] ranges rather than recursion, as lines can be very long
+        int[] stack = new int[2 * n];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n - 1;
+        while (top > 0) {
+            int end = stack[--top], start = stack[--top];
+            double maxDistance = 0;
+            int index = -1;
+            for (int i = start + 1; i < end; i++) {
+                double d = distanceToSegment(points[i], points[start], points[end]);
+                if (d > maxDistance) {
+                    maxDistance = d;
+                    index = i;
+                }
+            }
+            if (maxDistance > tolerance) {
+                keep[index] = true;
+                stack[top++] = start;
+                stack[top++] = index;
+                stack[top++] = index;
+                stack[top++] = end;
+            }
+        }
+
+        List<double[]> kept = new ArrayList<double[]>();
+        for (int i = 0; i < n; i++) if (keep[i]) kept.add(points[i]);
+        return quantize(kept.toArray(new double[kept.size()][]), true);
+    }
+
+    private static double distanceToSegment(double[] p, double[] a, double[] b) {
+        double dx = b[0] - a[0], dy = b[1] - a[1];
+        double len2 = dx * dx + dy * dy;
+        double t = len2 == 0 ? 0 : ((p[0] - a[0]) * dx + (p[1] - a[1]) * dy) / len2;
+        t = Math.max(0, Math.min(1, t));
+        double ex = a[0] + t * dx - p[0], ey = a[1] + t * dy - p[1];
+        return Math.sqrt(ex * ex + ey * ey);
+    }
+
+    /* Round the points, optionally dropping ones that become the same as the one before */
+    private double[][] quantize(double[][] points, boolean removeRepeats) {
+        List<double[]> result = new ArrayList<double[]>(points.length);
+        double[] last = null;
+        for (double[] p : points) {
+            double[] q = new double[]{Math.round(p[0] * scale), Math.round(p[1] * scale)};
+            if (removeRepeats && last != null && q[0] == last[0] && q[1] == last[1]) continue;
+            result.add(q);
+            last = q;
+        }
+        return result.toArray(new double[result.size()][]);
+    }
+
+    /* A ring without the repeated closing point, or any other repeated points */
+    private static double[][] openRing(double[][] points) {
+        double[][] ring = withoutRepeats(points);
+        int n = ring.length;
+        if (n > 1 && ring[0][0] == ring[n - 1][0] && ring[0][1] == ring[n - 1][1]) n--;
+        return Arrays.copyOf(ring, n);
+    }
+
+    private static double[][] withoutRepeats(double[][] points) {
+        List<double[]> result = new ArrayList<double[]>(points.length);
+        double[] last = null;
+        for (double[] p : points) {
+            if (last == null || p[0] != last[0] || p[1] != last[1]) result.add(p);
+            last = p;
+        }
+        return result.toArray(new double[result.size()][]);
+    }
+
+    private static double[][] reversed(double[][] points) {
+        double[][] result = new double[points.length][];
+        for (int i = 0; i < points.length; i++) result[i] = points[points.length - 1 - i];
+        return result;
+    }
+
+    private static int compare(double[] a, double[] b) {
+        return a[0] != b[0] ? Double.compare(a[0], b[0]) : Double.compare(a[1], b[1]);
+    }
+
+    private double[] point(JsonArray coordinates) {
+        return quantize(new double[][]{{coordinates.get(0).getAsDouble(), coordinates.get(1).getAsDouble()}}, false)[0];
+    }
+
+    private double[][] points(JsonArray coordinates) {
+        double[][] result = new double[coordinates.size()][];
+        for (int i = 0; i < result.length; i++) {
+            JsonArray p = coordinates.get(i).getAsJsonArray();
+            result[i] = new double[]{p.get(0).getAsDouble(), p.get(1).getAsDouble()};
+        }
+        return result;
+    }
+
+    private void writeParts(List<double[][]> parts) {
+        out.append('[');
+        for (int i = 0; i < parts.size(); i++) {
+            if (i > 0) out.append(',');
+            writePoints(parts.get(i));
+        }
+        out.append(']');
+    }
+
+    private void writePoints(double[][] points) {
+        out.append('[');
+        for (int i = 0; i < points.length; i++) {
+            if (i > 0) out.append(',');
+            writePoint(points[i]);
+        }
+        out.append(']');
+    }
+
+    /* Points have already been scaled and rounded, so we write them as fixed point numbers */
+    private void writePoint(double[] p) {
+        out.append('[');
+        writeNumber((long) p[0]);
+        out.append(',');
+        writeNumber((long) p[1]);
+        out.append(']');
+    }
+
+    private void writeNumber(long v) {
+        if (v < 0) out.append('-');
+        String s = Long.toString(Math.abs(v));
+        if (digits == 0) {
+            out.append(s);
+            return;
+        }
+        while (s.length() <= digits) s = "0" + s;
+        int split = s.length() - digits;
+        int end = s.length();
+        while (end > split && s.charAt(end - 1) == '0') end--;          // Remove trailing zeros
+        out.append(s, 0, split);
+        if (end > split) out.append('.').append(s, split, end);
+    }
+
+    /* A location, usable as a key */
+    private static final class Point {
+        private final double x, y;
+
+        Point(double[] p) {
+            x = p[0] + 0.0;                                             // Adding zero turns -0.0 into 0.0
+            y = p[1] + 0.0;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Point && ((Point) o).x == x && ((Point) o).y == y;
+        }
+
+        public int hashCode() {
+            return Double.valueOf(x).hashCode() * 31 + Double.valueOf(y).hashCode();
+        }
+    }
+
+    /* How a point is connected. It is a junction if it has more than two neighbours, where paths meet or split */
+    private static final class Node {
+        private Point a, b;
+        private boolean junction;
+
+        void connect(Point p, Point q) {
+            add(p);
+            add(q);
+        }
+
+        private void add(Point p) {
+            if (junction || p.equals(a) || p.equals(b)) return;
+            if (a == null) a = p;
+            else if (b == null) b = p;
+            else junction = true;
+        }
+    }
+
+    /* The points of an arc between junctions, compared by content */
+    private static final class Arc {
+        private final double[][] points;
+        private final int hash;
+
+        Arc(double[][] points) {
+            this.points = points;
+            this.hash = Arrays.deepHashCode(points);
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Arc && Arrays.deepEquals(((Arc) o).points, points);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
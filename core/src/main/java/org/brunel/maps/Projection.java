@@ -5,6 +5,10 @@ package org.brunel.maps;
  */
 abstract class Projection {
 
+    private static final int EDGE_SAMPLES = 8;                  // Samples along each edge when finding extents
+    private static final double EDGE_TOLERANCE = 1e-8;          // Precision for extremes, as a fraction of the edge
+    private static final double GOLDEN = (Math.sqrt(5) - 1) / 2;
+
     public static void main(String[] args) {
         Projection a = new Mercator();
         Projection b = new Albers(22, 66, 34);
@@ -86,28 +90,70 @@ abstract class Projection {
         return Math.abs(p[1] - q[1]);
     }
 
+    /**
+     * The extents of a lon/lat rectangle when projected. Projected edges may curve, so each edge is sampled and then
+     * any extreme found between its ends is refined with a golden section search, giving the extents to high precision
+     *
+     * @param x1 min longitude
+     * @param x2 max longitude
+     * @param y1 min latitude
+     * @param y2 max latitude
+     * @return [minX, maxX, minY, maxY] in projected coordinates
+     */
     public double[] maxExtents(double x1, double x2, double y1, double y2) {
-        double xm = (x1 + x2) / 2;
-        double ym = (y1 + y2) / 2;
-        double[][] pts = new double[][]{
-                {x1, y1}, {xm, y1}, {x2, y1}, {x2, ym},
-                {x2, y2}, {xm, y2}, {x1, y2}, {x1, ym},
-        };
-
-        double minX = 0, maxX = 0, minY = 0, maxY = 0;
-        for (int i = 0; i < pts.length; i++) {
-            double[] p = transform(pts[i][0], pts[i][1]);
-            if (i == 0) {
-                minX = maxX = p[0];
-                minY = maxY = p[1];
-            } else {
-                minX = Math.min(minX, p[0]);
-                maxX = Math.max(maxX, p[0]);
-                minY = Math.min(minY, p[1]);
-                maxY = Math.max(maxY, p[1]);
-            }
+        double[] ext = new double[]{Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        extendAlongEdge(ext, x1, y1, x2, y1);
+        extendAlongEdge(ext, x2, y1, x2, y2);
+        extendAlongEdge(ext, x2, y2, x1, y2);
+        extendAlongEdge(ext, x1, y2, x1, y1);
+        return ext;
+    }
+
+    /* Extend the extents [minX, maxX, minY, maxY] to include the projected line from (lon1,lat1) to (lon2,lat2) */
+    private void extendAlongEdge(double[] ext, double lon1, double lat1, double lon2, double lat2) {
+        double[][] p = new double[EDGE_SAMPLES + 1][];
+        for (int i = 0; i <= EDGE_SAMPLES; i++) {
+            double t = i / (double) EDGE_SAMPLES;
+            p[i] = transform(lon1 + t * (lon2 - lon1), lat1 + t * (lat2 - lat1));
         }
-        return new double[]{minX, maxX, minY, maxY};
+
+        for (int dim = 0; dim < 2; dim++)
+            for (int sign = -1; sign <= 1; sign += 2) {
+                // Find the most extreme sample; signed so we always look for a maximum
+                int k = 0;
+                for (int i = 1; i <= EDGE_SAMPLES; i++) if (sign * p[i][dim] > sign * p[k][dim]) k = i;
+                double best = sign * p[k][dim];
+
+                // The true extreme lies between the neighbors of an interior sample, so search there
+                if (k > 0 && k < EDGE_SAMPLES) {
+                    double a = (k - 1) / (double) EDGE_SAMPLES, b = (k + 1) / (double) EDGE_SAMPLES;
+                    double c = b - GOLDEN * (b - a), d = a + GOLDEN * (b - a);
+                    double fc = sign * transform(lon1 + c * (lon2 - lon1), lat1 + c * (lat2 - lat1))[dim];
+                    double fd = sign * transform(lon1 + d * (lon2 - lon1), lat1 + d * (lat2 - lat1))[dim];
+                    while (b - a > EDGE_TOLERANCE) {
+                        if (fc > fd) {
+                            b = d;
+                            d = c;
+                            fd = fc;
+                            c = b - GOLDEN * (b - a);
+                            fc = sign * transform(lon1 + c * (lon2 - lon1), lat1 + c * (lat2 - lat1))[dim];
+                        } else {
+                            a = c;
+                            c = d;
+                            fc = fd;
+                            d = a + GOLDEN * (b - a);
+                            fd = sign * transform(lon1 + d * (lon2 - lon1), lat1 + d * (lat2 - lat1))[dim];
+                        }
+                    }
+                    best = Math.max(best, Math.max(fc, fd));
+                }
+
+                // Index 0 or 2 hold minimums (sign -1), 1 or 3 hold maximums
+                int index = 2 * dim + (sign + 1) / 2;
+                if (sign < 0) ext[index] = Math.min(ext[index], -best);
+                else ext[index] = Math.max(ext[index], best);
+            }
     }
 
     public final static class Mercator extends Projection {
@@ -137,8 +183,46 @@ abstract class Projection {
                     (Math.sin(y) * sinca + y) / 2};
         }
 
+        /*
+         * There is no closed form for the inverse, so we use Newton's method, starting from the values that are exact
+         * near the origin. The Jacobian is estimated using forward differences, and steps are halved if they would
+         * make the error larger, which only happens near the edges of the projection
+         */
         public double[] inverse(double x, double y) {
-            throw new UnsupportedOperationException("Inverse not available for Winkel Triple");
+            double lon = clamp(Math.toDegrees(x / (0.5 + 1 / Math.PI)), 180);
+            double lat = clamp(Math.toDegrees(y), 90);
+            double[] p = transform(lon, lat);
+            double ex = p[0] - x, ey = p[1] - y;
+            for (int iteration = 0; iteration < 50 && Math.abs(ex) + Math.abs(ey) > 1e-12; iteration++) {
+                double h = 1e-7;
+                double[] pLon = transform(lon + h, lat), pLat = transform(lon, lat + h);
+                double a = (pLon[0] - p[0]) / h, b = (pLat[0] - p[0]) / h;
+                double c = (pLon[1] - p[1]) / h, d = (pLat[1] - p[1]) / h;
+                double det = a * d - b * c;
+                if (Math.abs(det) < 1e-15) break;                   // Degenerate (at a pole)
+                double dLon = (d * ex - b * ey) / det, dLat = (a * ey - c * ex) / det;
+
+                double error = Math.abs(ex) + Math.abs(ey);
+                for (int halving = 0; halving < 30; halving++) {
+                    double nLon = clamp(lon - dLon, 180), nLat = clamp(lat - dLat, 90);
+                    double[] q = transform(nLon, nLat);
+                    if (Math.abs(q[0] - x) + Math.abs(q[1] - y) < error || halving == 29) {
+                        lon = nLon;
+                        lat = nLat;
+                        p = q;
+                        break;
+                    }
+                    dLon /= 2;
+                    dLat /= 2;
+                }
+                ex = p[0] - x;
+                ey = p[1] - y;
+            }
+            return new double[]{lon, lat};
+        }
+
+        private static double clamp(double v, double limit) {
+            return Math.max(-limit, Math.min(limit, v));
         }
 
     }
@@ -23,6 +23,10 @@ class AnySelector extends StyleSelector {
         super(0);
     }
 
+    String anchor() {
+        return null;
+    }
+
     public String debug() {
         return "ANY";
     }
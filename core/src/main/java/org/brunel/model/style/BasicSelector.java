@@ -32,6 +32,11 @@ class BasicSelector extends StyleSelector {
         this.classes = classes;
     }
 
+    String anchor() {
+        if (classes.length > 0) return "." + classes[0];
+        return element;
+    }
+
     public String debug() {
         String s = "{";
         if (element != null) s += element + " ";
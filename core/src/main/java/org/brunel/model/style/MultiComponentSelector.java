@@ -43,6 +43,10 @@ class MultiComponentSelector extends StyleSelector {
         return new MultiComponentSelector(c);
     }
 
+    String anchor() {
+        return components[components.length - 1].anchor();
+    }
+
     public String debug() {
         String s = "";
         for (int i = 0; i < components.length; i++) {
@@ -66,17 +66,47 @@ public class StyleFactory {
         }
     };
 
+    // Parsed style sheets by their text. These are never changed; callers are given copies
+    final LinkedHashMap<String, StyleSheet> sheets = new LinkedHashMap<String, StyleSheet>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, StyleSheet> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
     private StyleFactory(int maxEntries) {
         this.maxEntries = maxEntries;
     }
 
     /**
-     * Makes a style sheet, silently discarding any non-conforming syntax
+     * Makes a style sheet, silently discarding any non-conforming syntax.
+     * Recently parsed texts are remembered, so the same text is not parsed again
      *
      * @param text input style sheet
-     * @return processed form
+     * @return processed form, which the caller may modify
      */
     public StyleSheet makeStyleSheet(String text) {
+        StyleSheet parsed;
+        synchronized (sheets) {
+            parsed = sheets.get(text);
+        }
+        if (parsed == null) {
+            parsed = parseStyleSheet(text);
+            synchronized (sheets) {
+                sheets.put(text, parsed);
+            }
+        }
+        StyleSheet sheet = new StyleSheet();
+        sheet.add(parsed);
+        return sheet;
+    }
+
+    /**
+     * Parses a style sheet, silently discarding any non-conforming syntax
+     *
+     * @param text input style sheet
+     * @return processed form
+     */
+    StyleSheet parseStyleSheet(String text) {
         StyleSheet sheet = new StyleSheet();
         for (String s : text.split("\\}")) {
             // This should be of the form "label { a:foo" (missing last brace)
@@ -119,6 +149,12 @@ public class StyleFactory {
     }
 
     StyleSelector makeSingleSelector(String text) {
+        synchronized (selectors) {
+            return makeSelectorUnsynchronized(text);
+        }
+    }
+
+    private StyleSelector makeSelectorUnsynchronized(String text) {
         StyleSelector s = selectors.get(text);
         if (s == null) {
             String[] parts = text.split("[ \t]+");
@@ -48,6 +48,14 @@ public abstract class StyleSelector implements Comparable<StyleSelector> {
         return new MultiComponentSelector(all);
     }
 
+    /**
+     * A requirement that every matching target must meet, used to index selectors.
+     * It is either ".class" for a class the target must have, or the name of the element the target must be.
+     *
+     * @return the requirement, or null if there is no single requirement on the target itself
+     */
+    abstract String anchor();
+
     public abstract String debug();
 
     public abstract boolean match(StyleTarget target);
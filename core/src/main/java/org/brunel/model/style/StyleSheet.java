@@ -23,25 +23,39 @@ import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * A style sheet
+ * A style sheet.
+ * For matching, the entries are sorted once into an index, most specific first, and bucketed by a requirement that
+ * targets must meet (see StyleSelector.anchor()), so only entries that might match a target are checked.
+ * Results are remembered for each target signature and key until the sheet is changed.
  */
 public class StyleSheet {
-    private static StyleSheet brunelDefault;        // The Default one for Brunel
+    private static final int MAX_REMEMBERED = 10000;   // Limit on remembered results per sheet
+    private static final Object NO_VALUE = new Object();   // Remembered when a key has no style
 
-    private static void ensureDefaultBuilt() {
-        if (brunelDefault == null) {
-            // Create this when it is needed
+    /*
+     * The default sheet for Brunel. It is created, with its index, when first needed; the class loader ensures
+     * that happens only once, even with concurrent builds. It is never changed afterwards.
+     */
+    private static class BrunelDefault {
+        private static final StyleSheet SHEET = make();
+
+        private static StyleSheet make() {
             String text = new Scanner(Builder.class.getResourceAsStream("/javascript/BrunelBaseStyles.css"), "UTF-8").useDelimiter("\\A").next();
-            brunelDefault = StyleFactory.instance().makeStyleSheet(text);
+            StyleSheet sheet = StyleFactory.instance().parseStyleSheet(text);
+            sheet.ensureIndexed();
+            return sheet;
         }
     }
 
@@ -60,23 +74,31 @@ public class StyleSheet {
             for (StyleSheetEntry e : other.entries)
                 entries.add(new StyleSheetEntry(e.selector.containedIn(parts), e.options, entries.size()));
         }
-        sorted = false;
+        index = null;
     }
 
     public static String getBrunelDefault(StyleTarget target, String key) {
-        ensureDefaultBuilt();
-        return brunelDefault.get(target, key);
+        return BrunelDefault.SHEET.get(target, key);
     }
 
     public String get(StyleTarget target, String key) {
-        ensureSorted();
-        for (StyleSheetEntry e : entries) {
-            if (e.selector.match(target)) {
-                String v = e.options.get(key);
-                if (v != null) return v;
+        Index index = ensureIndexed();
+        String memoKey = target.signature() + '|' + key;
+        Object value = index.values.get(memoKey);
+        if (value == null) {
+            value = NO_VALUE;
+            for (StyleSheetEntry e : index.candidates(target)) {
+                if (e.selector.match(target)) {
+                    String v = e.options.get(key);
+                    if (v != null) {
+                        value = v;
+                        break;
+                    }
+                }
             }
+            index.remember(index.values, memoKey, value);
         }
-        return null;
+        return value == NO_VALUE ? null : (String) value;
     }
 
     /* Returns a new style sheet with a class replaced */
@@ -87,17 +109,20 @@ public class StyleSheet {
         return result;
     }
 
-    private void ensureSorted() {
-        if (sorted) return;
-        Collections.sort(entries);
+    private Index ensureIndexed() {
+        Index result = index;
+        if (result == null) {
+            result = new Index(entries);
+            index = result;
+        }
+        return result;
     }
 
-    private final List<StyleSheetEntry> entries;    // Entries
-    private boolean sorted;                         // If true, most specific first
+    private final List<StyleSheetEntry> entries;    // Entries, in the order added
+    private volatile Index index;                   // Built when needed, discarded when entries change
 
     public StyleSheet() {
         entries = new ArrayList<StyleSheetEntry>();
-        sorted = false;
     }
 
     public void add(String text) {
@@ -106,22 +131,27 @@ public class StyleSheet {
 
     public void clear() {
         entries.clear();
+        index = null;
     }
 
     public Map<String, String> stylesFor(StyleTarget parent, String type, String... classes) {
-        ensureSorted();
+        Index index = ensureIndexed();
         StyleTarget target = new StyleTarget(type, parent, classes);
-        Map<String, String> result = new TreeMap<String, String>();
+        Map<String, String> result = index.styles.get(target.signature());
+        if (result == null) {
+            result = new TreeMap<String, String>();
 
-        // Only add the first occurrences of each org.brunel.app.match as they override each color in order
-        for (StyleSheetEntry e : entries) {
-            if (e.selector.match(target)) {
-                for (Map.Entry<String, String> o : e.options.entrySet()) {
-                    if (!result.containsKey(o.getKey())) result.put(o.getKey(), o.getValue());
+            // Only add the first occurrences of each org.brunel.app.match as they override each color in order
+            for (StyleSheetEntry e : index.candidates(target)) {
+                if (e.selector.match(target)) {
+                    for (Map.Entry<String, String> o : e.options.entrySet()) {
+                        if (!result.containsKey(o.getKey())) result.put(o.getKey(), o.getValue());
+                    }
                 }
             }
+            index.remember(index.styles, target.signature(), result);
         }
-        return result;
+        return new TreeMap<String, String>(result);
     }
 
     public String toString() {
@@ -147,11 +177,11 @@ public class StyleSheet {
      */
     private void write(Writer writer, String owner) throws IOException {
         // Must write in REVERSE order; most important last
-        ensureSorted();
-        Collections.reverse(entries);
+        StyleSheetEntry[] sorted = ensureIndexed().sorted;
 
-        for (StyleSheetEntry e : entries) {
-            if (e != entries.get(0)) writer.write('\n');
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            StyleSheetEntry e = sorted[i];
+            if (i < sorted.length - 1) writer.write('\n');
             if (owner != null) writer.write(owner + " ");
             writer.write(e.selector.toString());
             writer.write(" {");
@@ -167,17 +197,61 @@ public class StyleSheet {
             writer.write("}\n");
 
         }
-
-        // restore correct order
-        Collections.reverse(entries);
     }
 
     void addEntry(StyleSelector selector, Map<String, String> options) {
         entries.add(new StyleSheetEntry(selector, options, entries.size()));
-        sorted = false;
+        index = null;
+    }
+
+    /* The entries sorted and bucketed for matching, with remembered results. Not changed once built */
+    private static class Index {
+        private final StyleSheetEntry[] sorted;                     // Most specific first
+        private final List<StyleSheetEntry> general;                // Entries with no anchor, in sorted order
+        private final Map<String, List<StyleSheetEntry>> byAnchor;  // Entries by anchor, in sorted order
+        private final Map<String, Object> values = new ConcurrentHashMap<String, Object>();       // For 'get'
+        private final Map<String, Map<String, String>> styles                                  // For 'stylesFor'
+                = new ConcurrentHashMap<String, Map<String, String>>();
+
+        Index(List<StyleSheetEntry> entries) {
+            sorted = entries.toArray(new StyleSheetEntry[entries.size()]);
+            Arrays.sort(sorted);
+            general = new ArrayList<StyleSheetEntry>();
+            byAnchor = new HashMap<String, List<StyleSheetEntry>>();
+            for (StyleSheetEntry e : sorted) {
+                String anchor = e.selector.anchor();
+                if (anchor == null) {
+                    general.add(e);
+                } else {
+                    List<StyleSheetEntry> list = byAnchor.get(anchor);
+                    if (list == null) byAnchor.put(anchor, list = new ArrayList<StyleSheetEntry>());
+                    list.add(e);
+                }
+            }
+        }
+
+        /* The entries that might match, in sorted order */
+        List<StyleSheetEntry> candidates(StyleTarget target) {
+            List<StyleSheetEntry> result = new ArrayList<StyleSheetEntry>(general);
+            if (target.element != null) addAll(result, byAnchor.get(target.element));
+            for (String c : target.classes) addAll(result, byAnchor.get("." + c));
+            if (result.size() > general.size()) Collections.sort(result);
+            return result;
+        }
+
+        <T> void remember(Map<String, T> map, String key, T value) {
+            if (map.size() > MAX_REMEMBERED) map.clear();
+            map.put(key, value);
+        }
+
+        private void addAll(List<StyleSheetEntry> result, List<StyleSheetEntry> items) {
+            if (items == null) return;
+            // A selector is only anchored once, but a target may repeat a class
+            for (StyleSheetEntry e : items) if (!result.contains(e)) result.add(e);
+        }
     }
 
-    private class StyleSheetEntry implements Comparable<StyleSheetEntry> {
+    private static class StyleSheetEntry implements Comparable<StyleSheetEntry> {
         private final StyleSelector selector;
         private final Map<String, String> options;
         private final int index;
@@ -24,6 +24,8 @@ public class StyleTarget {
     public final String element;            // Type of element (text, label, ...)
     public final String[] classes;          // Classes this belongs to
     public final StyleTarget parent;        // parent class
+    private String signature;               // Describes this and its parents; created when needed
+
 
     public StyleTarget(String element, StyleTarget parent, String... classes) {
         this.element = element;
@@ -31,4 +33,20 @@ public class StyleTarget {
         this.parent = parent;
     }
 
+    /**
+     * A description of the target and all its parents. Targets with the same signature match the same styles
+     *
+     * @return text description
+     */
+    String signature() {
+        if (signature == null) {
+            StringBuilder b = new StringBuilder();
+            if (element != null) b.append(element);
+            for (String s : classes) b.append('.').append(s);
+            if (parent != null) b.append(" < ").append(parent.signature());
+            signature = b.toString();
+        }
+        return signature;
+    }
+
 }
@@ -22,12 +22,15 @@ package org.brunel.util;
 import org.brunel.action.Action;
 import org.brunel.build.d3.D3Builder;
 import org.brunel.build.util.BuilderOptions;
+import org.brunel.build.util.OutputCache;
 import org.brunel.data.Dataset;
 import org.brunel.data.io.CSV;
 import org.brunel.model.VisItem;
 
 import com.google.gson.Gson;
 
+import java.io.Writer;
+
 /**
  * Brunel integration methods provided for services and other languages.  Only primitives are used for language integration methods
  * 
@@ -37,6 +40,7 @@ import com.google.gson.Gson;
 public class D3Integration {
 	
 	private static final Gson gson = new Gson();
+	private static final OutputCache resultCache = new OutputCache();
 
 	/**
 	 * Create and return the Brunel results as a String containing the Brunel JSON.
@@ -66,8 +70,58 @@ public class D3Integration {
 	 */
     
     public static BrunelD3Result createBrunelResult(String data, String brunelSrc, int width,  int height, String visId) {
-    			Dataset dataset = makeBrunelData(data);
-				D3Builder builder = makeD3(dataset, brunelSrc, width, height, visId);
+				if (data.isEmpty()) {
+					// The Brunel defines the data, so the result depends on the datasets it reads
+					VisItem item;
+					try {
+						item = makeVisItem(null, brunelSrc);
+					} catch (Exception ex) {
+						throw failure(brunelSrc, ex);
+					}
+					return createBrunelResult(item, brunelSrc, width, height, visId);
+				}
+
+				// CSV data is compared as text, so we can check the cache before parsing it
+				String key;
+				try {
+					key = OutputCache.key(Action.parse(brunelSrc), width, height, makeOptions(visId));
+				} catch (Exception ex) {
+					throw failure(brunelSrc, ex);
+				}
+				Object[] sources = new Object[]{data};
+				BrunelD3Result result = (BrunelD3Result) resultCache.retrieve(key, sources);
+				if (result != null) return result;
+				result = makeResult(makeD3(makeBrunelData(data), brunelSrc, width, height, visId));
+				resultCache.store(key, sources, result, 2L * (result.css.length() + result.js.length()));
+				return result;
+    }
+
+	/**
+	 * Create and return the Brunel results for a visualization that has already been made, such as one whose data
+	 * is defined by the Brunel itself.
+	 * @param item the visualization, as returned by createVisItem
+	 * @param brunelSrc the brunel syntax used to make the item
+	 * @param width the desired width for the visualization
+	 * @param height the desired height for the visualization
+	 * @param visId an identifier used in the SVG tag that will contain the visualization
+	 * @return a Gson serializable object containing the Brunel JS, CSS and interactive control metadata.
+	 */
+    public static BrunelD3Result createBrunelResult(VisItem item, String brunelSrc, int width,  int height, String visId) {
+				String key;
+				try {
+					key = OutputCache.key(Action.parse(brunelSrc), width, height, makeOptions(visId));
+				} catch (Exception ex) {
+					throw failure(brunelSrc, ex);
+				}
+				Object[] sources = item.getDataSets();
+				BrunelD3Result result = (BrunelD3Result) resultCache.retrieve(key, sources);
+				if (result != null) return result;
+				result = makeResult(makeD3(item, brunelSrc, width, height, visId));
+				resultCache.store(key, sources, result, 2L * (result.css.length() + result.js.length()));
+				return result;
+    }
+
+    private static BrunelD3Result makeResult(D3Builder builder) {
 				BrunelD3Result result = new BrunelD3Result();
 				result.css = builder.getStyleOverrides();
 				result.js = builder.getVisualization().toString();
@@ -76,21 +130,66 @@ public class D3Integration {
     }
     
 	
+    /**
+     * Create the visualization description for data and Brunel, ready to be written by writeBrunelJS.
+     * @param data the data as a CSV String
+     * @param brunelSrc the brunel syntax
+     * @return the visualization to build
+     */
+    public static VisItem createVisItem(String data, String brunelSrc) {
+        return makeVisItem(makeBrunelData(data), brunelSrc);
+    }
+
+    /**
+     * Write the Brunel Javascript for a visualization to a writer as it is generated, without holding all of it
+     * in memory. The writer is flushed but not closed.
+     * @param item the visualization, as returned by createVisItem
+     * @param width the desired width for the visualization
+     * @param height the desired height for the visualization
+     * @param visId an identifier used in the SVG tag that will contain the visualization
+     * @param out where to write the Javascript
+     */
+    public static void writeBrunelJS(VisItem item, int width, int height, String visId, Writer out) {
+        D3Builder builder = D3Builder.make(makeOptions(visId));
+        builder.setOutput(out);
+        builder.build(item, width, height);
+    }
+
 	//Creates a D3Builder to produce the d3 output
     public static D3Builder makeD3(Dataset data, String actionText, int width, int height, String visId) {
+        VisItem item;
+        try {
+            item = makeVisItem(data, actionText);
+        } catch (Exception ex) {
+            throw failure(actionText, ex);
+        }
+        return makeD3(item, actionText, width, height, visId);
+    }
+
+    //Creates a D3Builder to produce the d3 output for a visualization that has already been made
+    public static D3Builder makeD3(VisItem item, String actionText, int width, int height, String visId) {
     	try {
-            BuilderOptions options = new BuilderOptions();
-            options.visIdentifier = visId;
-            D3Builder builder = D3Builder.make(options);
-            VisItem item = makeVisItem(data, actionText);
+            D3Builder builder = D3Builder.make(makeOptions(visId));
             builder.build(item, width, height);
             return builder;
     	} catch (Exception ex) {
-        	ex.printStackTrace();
-            throw new IllegalArgumentException("Could not execute Brunel: " + actionText, ex);
+            throw failure(actionText, ex);
         } 
     }
 
+    //The exception reported when the Brunel cannot be parsed or built
+    private static IllegalArgumentException failure(String actionText, Exception ex) {
+        ex.printStackTrace();
+        return new IllegalArgumentException("Could not execute Brunel: " + actionText, ex);
+    }
+
+    //The options used for all builds from these methods
+    public static BuilderOptions makeOptions(String visId) {
+        BuilderOptions options = new BuilderOptions();
+        options.visIdentifier = visId;
+        return options;
+    }
+
     //Create a Dataset instance given CSV
     private static Dataset makeBrunelData(String data) {
     	if (data.isEmpty()) return null;
@@ -104,7 +203,7 @@ public class D3Integration {
 
  
     //Create the VisItem instance for the given Brunel
-    private static VisItem makeVisItem(Dataset brunel, String actionText) {
+    public static VisItem makeVisItem(Dataset brunel, String actionText) {
         Action action = Action.parse(actionText);
         if (brunel == null) return action.apply();
         return action.apply(brunel);
@@ -381,25 +381,10 @@ var BrunelD3 = (function () {
 
 
     // Cloud layout -- pass in the dataset, the extent as [width, height]
+    // Items are measured here, but placed using the layout in BrunelData
     function cloud(data, ext) {
-        // Delta is the distance between locations as we step along the spiral to place items
-        // It is also the distance between curves of the spiral.
-        // dx and dy are delta, but spread out to fit the space better for non-square results
-        // When we start searching out from the center in the spiral, we look for anything larger than us
-        // and start outside that. 'precision' reduces the concept of 'larger' so we search less space
-        var delta = Math.max(1, Math.pow(data.rowCount() / 300, 2));
-        var precision = Math.pow(0.9, data.rowCount() / 100);
-        var dx = delta * ext[0] / Math.max(ext[0], ext[1]),
-            dy = delta * ext[1] / Math.max(ext[0], ext[1]);
-        var placed = [];           // Placed items
-
-        function intersects(a, b) {
-            // Height first as that is less likely to overlap for long text
-            return a.y + a.height / 2 >= b.y - b.height / 2
-                && b.y + b.height / 2 >= a.y - a.height / 2
-                && a.x + a.width / 2 >= b.x - b.width / 2
-                && b.x + b.width / 2 >= a.x - a.width / 2;
-        }
+        var layout = BrunelData.diagram_Cloud.make(data.rowCount(), ext[0], ext[1]);
+        var placed = [];           // Transforms for placed items
 
         function ascender(txt) {
             // 1 == ascender, 2 == descender, 3 == both
@@ -433,51 +418,19 @@ var BrunelD3 = (function () {
             var item = {width: r.width + 4, height: ht, ox: 0, oy: oy};                // Our trial item (with slight x padding)
             var rotated = (index % 5) % 2 == 1;
             if (rotated) item = {height: item.width, width: item.height, oy: 0, ox: oy};
-            var i, hit = true, theta = 0;                                      // Start at center and ensure we loop
-
-            item.title = svg.textContent;
-            // Find any items at least this large and where we put them (only consider items with same orientation)
-            for (i = placed.length - 1; i >= 0; i--) {
-                if (item.width >= precision * placed[i].width && item.height > precision * placed[i].height) {
-                    theta = Math.max(theta, placed[i].theta);
-                }
-            }
-
-
-            while (hit) {
-                // Set trial center location
-                item.x = Math.cos(theta) * theta * dx;
-                item.y = Math.sin(theta) * theta * dy;
-                item.theta = theta;
-                hit = false;
-                for (i = placed.length - 1; i >= 0; i--)
-                    if (intersects(item, placed[i])) {
-                        hit = true;
-                        break;
-                    }
-
-                // Outward on the spiral -- this is approximately the same as the arc sine and faster
-                theta += delta / Math.max(delta, Math.sqrt(item.x * item.x + item.y * item.y));
-            }
-            placed.push(item);       // Keep track of the placed items
 
+            var p = layout.place(item.width, item.height);
             if (index == data.rowCount() - 1) transformToFill(svg);
 
-
-            var s = "translate(" + (item.x - item.ox) + "," + (item.y + item.oy) + ")";
+            var s = "translate(" + (p[0] - item.ox) + "," + (p[1] + item.oy) + ")";
             if (rotated) s += "rotate(90, 0, 0) ";
+            placed.push(s);
             return s;
         }
 
         function transformToFill(svg) {
             // Add transform to the item's parent to make it fit
-            var sx = placed.reduce(function (v, item) {
-                return Math.max(v, Math.abs(item.x) + item.width / 2)
-            }, 0);
-            var sy = placed.reduce(function (v, item) {
-                return Math.max(v, Math.abs(item.y) + item.height / 2)
-            }, 0);
-            var s = Math.min(ext[0] / sx, ext[1] / sy) / 2;
+            var s = layout.scaleToFit(ext[0], ext[1]);
             svg.parentNode.setAttribute('transform', 'scale(' + s + ')');
         }
 
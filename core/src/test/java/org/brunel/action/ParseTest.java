@@ -22,6 +22,9 @@ import org.junit.Test;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 public class ParseTest {
@@ -233,4 +236,42 @@ public class ParseTest {
 
     }
 
+    @Test
+    public void testNormalizeWhitespace() {
+        assertEquals("x(a) y(b)", Parser.normalizeWhitespace("  x(a)\n\t y(b) "));
+        assertEquals("label('a  b') bar", Parser.normalizeWhitespace("label('a  b')   bar"));
+        assertEquals("label(\"a\\\"  b\")", Parser.normalizeWhitespace("label(\"a\\\"  b\")"));
+        assertEquals("", Parser.normalizeWhitespace(" \n "));
+    }
+
+    @Test
+    public void testCached() {
+        Action a = Action.parse("x(region) y(water)   bar");
+        assertSame(a, Action.parse("  x(region)\ny(water) bar"));
+        assertNotSame(a, Action.parse("x(region) y(water) line"));
+
+        // Replacing parameters must not change the shared action
+        ActionUtil.replaceDataParameters(Action.parse("data('a') x(b)"), Param.makeString("c"));
+        assertEquals("data('a') x(b)", Action.parse("data('a') x(b)").toString());
+    }
+
+    @Test
+    public void testDirectMatchesTokens() {
+        String[] valid = {"bar x(a) y(b:ascending) color(c:blues:10, d) stack",
+                "x(region) y(income) label('% under 18', \"a\\\"b\") + line x(region) size(#count) mean(income)",
+                "axes(none) legends(all) | bin(a:2, b:3) x(a) y(#count)", "x(a, 1.5, -2, 'text') y(\n b) ",
+                "tooltip(#all, Infinity) sort(a:ascending:'x')"};
+        for (String text : valid) {
+            Parser parser = new Parser();
+            Action expected = parser.makeActionFromTokens(parser.tokenize(text), text);
+            Action direct = new Parser().parseDirect(text);
+            assertEquals(expected, direct);
+            assertEquals(expected.toString(), direct.toString());
+        }
+
+        // Invalid or unusual text needs the token parse
+        String[] invalid = {"", "x(", "x()", "bar(a)", "unknown(a)", "x(a b)", "x(a:)", "x(a,)", "axes(foo)"};
+        for (String text : invalid) assertNull(new Parser().parseDirect(text));
+    }
+
 }
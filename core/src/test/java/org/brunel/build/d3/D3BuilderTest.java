@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.build.d3;
+
+import org.brunel.action.Action;
+import org.brunel.build.util.BuilderOptions;
+import org.brunel.data.CannedData;
+import org.brunel.data.Dataset;
+import org.brunel.data.io.CSV;
+import org.brunel.model.VisItem;
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class D3BuilderTest {
+
+    private final Dataset bank = Dataset.make(CSV.read(CannedData.bank));
+
+    @Test
+    public void testStreamedOutput() {
+        String[] actions = {
+                "x(jobcat) y(salary) mean(salary) + point x(educ) y(salary) color(gender) tooltip(#all)",
+                "treemap x(jobcat, gender) size(#count) label(#count)",
+                "point x(salbegin) y(salary) color(jobcat) tooltip(#all)",
+        };
+        int longest = 0;
+        for (String action : actions) {
+            for (boolean readable : new boolean[]{true, false}) {
+                String expected = build(action, readable, null);
+                StringWriter streamed = new StringWriter();
+                build(action, readable, streamed);
+                longest = Math.max(longest, expected.length());
+                assertEquals(action, expected, streamed.toString());
+            }
+        }
+        assertTrue(longest > 8192);                                     // Some output needed more than one chunk
+    }
+
+    private String build(String action, boolean readable, StringWriter target) {
+        BuilderOptions options = new BuilderOptions();
+        options.readableJavascript = readable;
+        D3Builder builder = D3Builder.make(options);
+        builder.setOutput(target);
+        VisItem item = Action.parse(action).apply(bank);
+        builder.build(item, 800, 600);
+        return target == null ? (String) builder.getVisualization() : null;
+    }
+}
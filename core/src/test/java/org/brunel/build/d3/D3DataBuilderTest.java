@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.build.d3;
+
+import org.brunel.action.Action;
+import org.brunel.build.DataTransformParameters;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import org.brunel.build.util.BuilderOptions;
+import org.brunel.build.util.ScriptWriter;
+import org.brunel.data.CannedData;
+import org.brunel.data.Data;
+import org.brunel.data.Dataset;
+import org.brunel.data.Field;
+import org.brunel.data.io.CSV;
+import org.brunel.model.VisSingle;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class D3DataBuilderTest {
+
+    private final Dataset bank = Dataset.make(CSV.read(CannedData.bank));
+
+    @Test
+    public void testPrecomputed() {
+        String js = build("bar x(jobcat) y(salary) mean(salary) color(gender)", true);
+        assertTrue(js.contains("function makePrecomputed()"));
+        assertTrue(js.contains("'Mean(Salary)', [25812.5,35231.818181818184,80375]"));
+        assertTrue(js.contains("var table1 = null;"));
+
+        // Binned values are recreated as ranges
+        js = build("bar x(salary) bin(salary) y(#count)", true);
+        assertTrue(js.contains("BrunelData.util_Range.make(0, 20000)"));
+    }
+
+    @Test
+    public void testPrecomputedCategories() {
+        // Sorting orders the categories by the sort field
+        String js = build("bar x(jobcat) y(salary) mean(salary) sort(salary)", true);
+        assertTrue(js.contains("f[0].setCategories(['Manager','Clerical'])"));
+        assertFalse(build("bar x(jobcat) y(salary) mean(salary)", true).contains("setCategories"));
+
+        // Binning makes categories for all the bins, including empty ones
+        Dataset binned = bank.bin("salary=bin:50");
+        binned.set("parameters", new DataTransformParameters("", "", "salary=bin:50", "", "", "", "", ""));
+        Field salary = binned.field("salary");
+        VisSingle vis = (VisSingle) Action.parse("point x(salary) y(salbegin)").apply(binned);
+        Map<String, Integer> fields = new LinkedHashMap<String, Integer>();
+        fields.put("salary", 0);
+        fields.put("salbegin", 1);
+        ScriptWriter out = new ScriptWriter(true);
+        D3DataBuilder builder = new D3DataBuilder(vis, out, binned, 0);
+        assertTrue(builder.canPrecompute(fields));
+        builder.writeDataManipulation(fields, true);
+
+        js = out.content();
+        assertTrue(js.contains("f[0].set('transform', '" + salary.property("transform") + "')"));
+        int start = js.indexOf("f[0].setCategories(");
+        assertTrue(start > 0);
+        String categories = js.substring(start, js.indexOf(")", js.indexOf("])", start)));
+        assertTrue(categories.contains("BrunelData.util_Range.make(16000, 18000),BrunelData.util_Range.make(18000, 20000)"));
+        assertEquals(salary.categories().length, categories.split("util_Range.make").length - 1);
+        assertTrue(salary.categories().length > salary.uniqueValuesCount());
+    }
+
+    @Test
+    public void testNotPrecomputed() {
+        // Selection needs the original data in the browser
+        String js = build("bar x(jobcat) y(salary) mean(salary) interaction(select)", true);
+        assertFalse(js.contains("makePrecomputed"));
+        assertFalse(js.contains("var table1 = null;"));
+
+        js = build("bar x(jobcat) y(salary) mean(salary)", false);
+        assertFalse(js.contains("makePrecomputed"));
+    }
+
+    @Test
+    public void testCompact() {
+        String action = "bar x(jobcat) y(salary) mean(salary) color(gender) tooltip(#all)";
+        String readable = build(action, false, true);
+        String compact = build(action, false, false);
+        assertTrue(compact.length() < readable.length() * 3 / 4);
+        assertTrue(compact.contains("jobcat:$val(f0),"));
+
+        // Apart from comments, white space and the shared accessors, the code is the same
+        readable = readable.replaceAll("(?m)(^|\\s)//.*$", "")
+                .replaceAll("function\\(d\\) \\{ return (f\\d+)\\.value\\(d\\.row\\) }", "\\$val($1)")
+                .replaceAll("function\\(d\\) \\{ return (f\\d+)\\.valueFormatted\\(d\\.row\\) }", "\\$fmt($1)");
+        compact = compact.replaceAll("(?m)^function \\$(val|fmt)\\(f\\).*$", "");
+        assertEquals(readable.replaceAll("\\s", ""), compact.replaceAll("\\s", ""));
+    }
+
+    @Test
+    public void testColumnarFormats() {
+        Object[] numbers = {1.5, null, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, -2.0, 1e-300};
+        Object[] dates = {new Date(0), null, new Date(1234567890123L), new Date(-86400000L), null, new Date(0),
+                new Date(1000)};
+        Object[] names = {"a", "b", null, "a", "it's", "a", "\u00e9"};
+        Field number = Data.makeColumnField("number", null, numbers);
+        Field date = Data.makeColumnField("when", null, dates);
+        date.set("date", true);
+        date.set("numeric", true);
+        Field name = Data.makeColumnField("name", null, names);
+        Dataset data = Dataset.make(new Field[]{number, date, name}, false);
+        number.set("numeric", true);
+
+        for (BuilderOptions.DataFormat format : new BuilderOptions.DataFormat[]{
+                BuilderOptions.DataFormat.columnar, BuilderOptions.DataFormat.binary}) {
+            BuilderOptions options = new BuilderOptions();
+            options.includeData = BuilderOptions.DataMethod.full;
+            options.dataFormat = format;
+            ScriptWriter out = new ScriptWriter(true);
+            D3DataBuilder.writeTables(Action.parse("point x(name) y(number) color(when)").apply(data), out, options);
+
+            Dataset copy = readColumnarTable(out.content());
+            Field n = copy.field("number"), d = copy.field("when"), s = copy.field("name");
+            String numberType = format == BuilderOptions.DataFormat.binary ? "b" : "v";
+            assertTrue(out.content(), out.content().contains("types: ['" + numberType + "', 'd', 'k']"));
+            for (int i = 0; i < numbers.length; i++) {
+                // NaN is treated as missing, but infinite values are kept
+                assertEquals(format + ":" + i, Data.asNumeric(numbers[i]), Data.asNumeric(n.value(i)));
+                assertEquals(format + ":" + i, dates[i], d.value(i));
+                assertEquals(format + ":" + i, names[i], s.value(i));
+            }
+        }
+    }
+
+    /* Parse the table written as a Javascript object and make a dataset from it, as the browser does */
+    private static Dataset readColumnarTable(String js) {
+        String text = js.substring(js.indexOf("= {") + 2);
+        JsonReader reader = new JsonReader(new StringReader(text));
+        reader.setLenient(true);                                                // Single quotes and unquoted names
+        JsonObject table = new JsonParser().parse(reader).getAsJsonObject();
+        JsonArray names = table.getAsJsonArray("names"), types = table.getAsJsonArray("types");
+        JsonArray columns = table.getAsJsonArray("columns");
+        String[] n = new String[names.size()], t = new String[names.size()];
+        Object[] c = new Object[names.size()];
+        for (int i = 0; i < n.length; i++) {
+            n[i] = names.get(i).getAsString();
+            t[i] = types.get(i).getAsString();
+            if (t[i].equals("b")) {
+                c[i] = columns.get(i).getAsString();
+            } else if (t[i].equals("k")) {
+                JsonArray pair = columns.get(i).getAsJsonArray();
+                JsonArray codes = pair.get(1).getAsJsonArray();
+                int[] indices = new int[codes.size()];
+                for (int j = 0; j < indices.length; j++) indices[j] = codes.get(j).getAsInt();
+                c[i] = new Object[]{values(pair.get(0).getAsJsonArray(), false), indices};
+            } else {
+                c[i] = values(columns.get(i).getAsJsonArray(), true);
+            }
+        }
+        return Dataset.makeFromColumns(n, t, c);
+    }
+
+    private static Object[] values(JsonArray array, boolean numeric) {
+        Object[] result = new Object[array.size()];
+        for (int i = 0; i < result.length; i++) {
+            JsonElement e = array.get(i);
+            if (!e.isJsonNull()) result[i] = numeric ? (Object) e.getAsDouble() : e.getAsString();
+        }
+        return result;
+    }
+
+    private String build(String action, boolean precompute) {
+        return build(action, precompute, true);
+    }
+
+    private String build(String action, boolean precompute, boolean readable) {
+        BuilderOptions options = new BuilderOptions();
+        options.precomputeData = precompute;
+        options.readableJavascript = readable;
+        D3Builder builder = D3Builder.make(options);
+        builder.build(Action.parse(action).apply(bank), 800, 600);
+        return (String) builder.getVisualization();
+    }
+}
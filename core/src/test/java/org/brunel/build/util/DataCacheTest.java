@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.build.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.brunel.data.CannedData;
+import org.brunel.data.Dataset;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DataCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSnapshot() throws Exception {
+        byte[] csv = CannedData.whiskey.getBytes("utf-8");
+        Dataset whiskey = DataCache.get("uploaded-whiskey", new ByteArrayInputStream(csv));
+        DataCache.get("raw:a,b;1,2;3,4");
+
+        File dir = folder.newFolder("snapshot");
+        DataCache.snapshot(dir);
+
+        // Raw data is not worth keeping
+        List<String> keys = Files.readAllLines(new File(dir, "manifest.txt").toPath(), Charset.forName("utf-8"));
+        assertTrue(keys.contains("uploaded-whiskey"));
+        assertFalse(keys.contains("raw:a,b;1,2;3,4"));
+
+        Dataset restored = new DiskCache(dir).retrieve("uploaded-whiskey");
+        assertEquals(CannedData.dump(whiskey), CannedData.dump(restored));
+
+        // Restoring does not replace what is already loaded
+        DataCache.restore(dir).join();
+        assertSame(whiskey, DataCache.get("uploaded-whiskey"));
+    }
+
+    @Test
+    public void testRevalidation() throws Exception {
+        final String[] content = {"a,b\n1,2\n3,4", "\"v1\""};
+        final int[] counts = new int[2];               // full responses, not-modified responses
+
+        // A stand-in for a web server that supports ETags
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/data.csv", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if (content[1].equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    counts[1]++;
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    counts[0]++;
+                    byte[] bytes = content[0].getBytes("utf-8");
+                    exchange.getResponseHeaders().add("ETag", content[1]);
+                    exchange.sendResponseHeaders(200, bytes.length);
+                    exchange.getResponseBody().write(bytes);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+
+        try {
+            String key = "http://localhost:" + server.getAddress().getPort() + "/data.csv";
+            Dataset first = DataCache.get(key);
+            assertEquals(2, first.rowCount());
+
+            // Without a time to live, we never go back to the server
+            assertSame(first, DataCache.get(key));
+            assertEquals(1, counts[0]);
+            assertEquals(0, counts[1]);
+
+            // Once expired, an unchanged source only costs a 304
+            DataCache.setTimeToLive(key, 0);
+            assertSame(first, DataCache.get(key));
+            assertEquals(1, counts[0]);
+            assertEquals(1, counts[1]);
+
+            // A changed source is read again
+            content[0] = "a,b\n1,2\n3,4\n5,6";
+            content[1] = "\"v2\"";
+            Dataset second = DataCache.get(key);
+            assertNotSame(first, second);
+            assertEquals(3, second.rowCount());
+            assertEquals(2, counts[0]);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testRevalidatesUserCacheData() throws Exception {
+        final int[] count = new int[1];
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/shared.csv", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                count[0]++;
+                byte[] bytes = "a,b\n1,2\n3,4\n5,6".getBytes("utf-8");
+                exchange.sendResponseHeaders(200, bytes.length);
+                exchange.getResponseBody().write(bytes);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        // Data for the URL that another process put in a shared cache; we do not know when it was read
+        final String key = "http://localhost:" + server.getAddress().getPort() + "/shared.csv";
+        final Dataset shared = DataCache.get("raw:a,b;1,2");
+        DataCache.useCache(new DatasetCache() {
+            public void store(String k, Dataset dataset) {
+            }
+
+            public Dataset retrieve(String k) {
+                return k.equals(key) ? shared : null;
+            }
+        });
+
+        try {
+            assertSame(shared, DataCache.get(key));
+            assertEquals(0, count[0]);
+
+            // With a time to live it is checked with the source
+            DataCache.setTimeToLive(key, 60000);
+            Dataset read = DataCache.get(key);
+            assertEquals(3, read.rowCount());
+            assertEquals(1, count[0]);
+            assertSame(read, DataCache.get(key));
+            assertEquals(1, count[0]);
+        } finally {
+            DataCache.useCache(null);
+            server.stop(0);
+        }
+    }
+}
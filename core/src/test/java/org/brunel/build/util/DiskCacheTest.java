@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.build.util;
+
+import org.brunel.data.CannedData;
+import org.brunel.data.Dataset;
+import org.brunel.data.io.CSV;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class DiskCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testInMemory() throws Exception {
+        DiskCache cache = new DiskCache(folder.newFolder("cache"));
+        Dataset whiskey = Dataset.make(CSV.read(CannedData.whiskey));
+        cache.store("whiskey", whiskey);
+        assertSame(whiskey, cache.retrieve("whiskey"));
+        assertNull(cache.retrieve("unknown"));
+    }
+
+    @Test
+    public void testSpillsToDisk() throws Exception {
+        File dir = folder.newFolder("cache");
+        Dataset whiskey = Dataset.make(CSV.read(CannedData.whiskey));
+        Dataset bank = Dataset.make(CSV.read(CannedData.bank));
+
+        // Only room for one item in memory, so storing the second spills the first
+        DiskCache cache = new DiskCache(dir, 1);
+        cache.store("whiskey", whiskey);
+        cache.store("bank", bank);
+        assertEquals(1, dir.listFiles().length);
+
+        Dataset copy = cache.retrieve("whiskey");
+        assertEquals(whiskey.rowCount(), copy.rowCount());
+        assertEquals(whiskey.field("Rating").numericProperty("mean"), copy.field("Rating").numericProperty("mean"));
+
+        // Now bank should have been spilled
+        assertEquals(bank.rowCount(), cache.retrieve("bank").rowCount());
+    }
+
+    @Test
+    public void testFlushSurvivesRestart() throws Exception {
+        File dir = folder.newFolder("cache");
+        DiskCache cache = new DiskCache(dir);
+        Dataset whiskey = Dataset.make(CSV.read(CannedData.whiskey));
+        cache.store("whiskey", whiskey);
+        cache.flush();
+
+        DiskCache restarted = new DiskCache(dir);
+        assertEquals(CannedData.dump(whiskey), CannedData.dump(restarted.retrieve("whiskey")));
+    }
+
+    @Test
+    public void testReplaceMappedDataset() throws Exception {
+        File dir = folder.newFolder("cache");
+        DiskCache cache = new DiskCache(dir);
+        cache.store("data", Dataset.make(CSV.read(CannedData.whiskey)));
+        cache.flush();
+
+        // The dataset read back is mapped to its file, so storing a new one must not write over that file
+        DiskCache restarted = new DiskCache(dir);
+        Dataset mapped = restarted.retrieve("data");
+        Dataset bank = Dataset.make(CSV.read(CannedData.bank));
+        restarted.store("data", bank);
+        restarted.flush();
+        assertEquals(1, dir.listFiles().length);
+        assertEquals(Dataset.make(CSV.read(CannedData.whiskey)).rowCount(), mapped.rowCount());
+
+        assertEquals(CannedData.dump(bank), CannedData.dump(new DiskCache(dir).retrieve("data")));
+    }
+
+    @Test
+    public void testStaleFilesRemoved() throws Exception {
+        File dir = folder.newFolder("cache"), other = folder.newFolder("other");
+        Dataset whiskey = Dataset.make(CSV.read(CannedData.whiskey));
+        DiskCache cache = new DiskCache(dir);
+        cache.store("data", whiskey);
+        cache.flush();
+
+        // An older file for the same key, as a process that stopped before deleting it would leave
+        DiskCache older = new DiskCache(other);
+        older.store("data", Dataset.make(CSV.read(CannedData.bank)));
+        older.flush();
+        File current = dir.listFiles()[0], stale = other.listFiles()[0];
+        String name = current.getName();
+        Files.copy(stale.toPath(), new File(dir, name.substring(0, name.indexOf('.')) + ".1.brunel").toPath());
+        assertEquals(2, dir.listFiles().length);
+
+        // The newest is used, and the stale one deleted when the directory is read
+        DiskCache restarted = new DiskCache(dir);
+        assertEquals(1, dir.listFiles().length);
+        assertEquals(CannedData.dump(whiskey), CannedData.dump(restarted.retrieve("data")));
+        assertNull(restarted.retrieve("unknown"));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.build.util;
+
+import org.brunel.action.Action;
+import org.brunel.data.CannedData;
+import org.brunel.data.Dataset;
+import org.brunel.data.Field;
+import org.brunel.data.io.CSV;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class OutputCacheTest {
+
+    @Test
+    public void testMatchesSources() {
+        Dataset whiskey = Dataset.make(CSV.read(CannedData.whiskey));
+        Dataset reloaded = Dataset.make(CSV.read(CannedData.whiskey));
+
+        OutputCache cache = new OutputCache();
+        cache.store("a", new Object[]{whiskey, "x,y"}, "output", 6);
+        assertEquals("output", cache.retrieve("a", new Object[]{whiskey, new String("x,y")}));
+        assertNull(cache.retrieve("b", new Object[]{whiskey, "x,y"}));
+
+        // Different data makes the entry stale
+        assertNull(cache.retrieve("a", new Object[]{reloaded, "x,y"}));
+        assertNull(cache.retrieve("a", new Object[]{whiskey, "x,y"}));
+    }
+
+    @Test
+    public void testDoesNotKeepSources() throws Exception {
+        StringBuilder b = new StringBuilder("a,b");
+        for (int i = 0; i < 1000; i++) b.append('\n').append(i).append(',').append(i * i);
+        String csv = b.toString();
+
+        // Long text is compared by digest, and counts toward memory use only as much as a short string
+        OutputCache cache = new OutputCache(2000);
+        cache.store("a", new Object[]{csv}, "A", 10);
+        assertEquals("A", cache.retrieve("a", new Object[]{new String(csv)}));
+        assertNull(cache.retrieve("a", new Object[]{csv + "\n1,1"}));
+        cache.store("a", new Object[]{csv}, "A", 10);
+        cache.store("b", new Object[]{csv}, "B", 10);
+        cache.store("c", new Object[]{csv}, "C", 10);
+        assertEquals("A", cache.retrieve("a", new Object[]{csv}));
+
+        // Datasets are only referenced weakly
+        Dataset whiskey = Dataset.make(CSV.read(CannedData.whiskey));
+        cache.store("d", new Object[]{whiskey}, "D", 10);
+        WeakReference<Dataset> reference = new WeakReference<Dataset>(whiskey);
+        whiskey = null;
+        for (int i = 0; i < 100 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get());
+    }
+
+    @Test
+    public void testSourcesCountTowardsMemory() {
+        String text = "0123456789";
+        OutputCache cache = new OutputCache(250);
+        cache.store("a", new Object[]{text}, "A", 100);
+        cache.store("b", new Object[]{text}, "B", 100);
+        assertNull(cache.retrieve("a", new Object[]{text}));
+        assertEquals("B", cache.retrieve("b", new Object[]{text}));
+    }
+
+    @Test
+    public void testEviction() {
+        OutputCache cache = new OutputCache(10);
+        Object[] none = new Object[0];
+        cache.store("a", none, "A", 4);
+        cache.store("b", none, "B", 4);
+        cache.retrieve("a", none);
+        cache.store("c", none, "C", 4);
+        assertEquals("A", cache.retrieve("a", none));
+        assertNull(cache.retrieve("b", none));
+        assertEquals("C", cache.retrieve("c", none));
+
+        // Always keeps the latest item
+        cache.store("d", none, "D", 100);
+        assertEquals("D", cache.retrieve("d", none));
+        assertNull(cache.retrieve("a", none));
+    }
+
+    @Test
+    public void testKey() {
+        BuilderOptions options = new BuilderOptions();
+        String key = OutputCache.key(Action.parse("x(a) y(b) bar"), 200, 100, options);
+        assertEquals(key, OutputCache.key(Action.parse("bar x(a) y(b)"), 200, 100, options));
+        assertNotEquals(key, OutputCache.key(Action.parse("x(a) y(b) bar"), 200, 101, options));
+        options.readableJavascript = false;
+        assertNotEquals(key, OutputCache.key(Action.parse("x(a) y(b) bar"), 200, 100, options));
+    }
+
+    @Test
+    public void testFingerprint() {
+        Dataset whiskey = Dataset.make(CSV.read(CannedData.whiskey));
+        Dataset reloaded = Dataset.make(CSV.read(CannedData.whiskey));
+        Dataset bank = Dataset.make(CSV.read(CannedData.bank));
+
+        // Datasets are compared by content
+        String print = OutputCache.fingerprint("a", new Object[]{whiskey});
+        assertEquals(print, OutputCache.fingerprint("a", new Object[]{reloaded}));
+        assertNotEquals(print, OutputCache.fingerprint("a", new Object[]{bank}));
+        assertNotEquals(print, OutputCache.fingerprint("b", new Object[]{whiskey}));
+        assertEquals(OutputCache.fingerprint("a", new Object[]{"x,y"}), OutputCache.fingerprint("a", new Object[]{"x,y"}));
+        assertNotEquals(OutputCache.fingerprint("a", new Object[]{"x,y"}), OutputCache.fingerprint("a", new Object[]{"x,z"}));
+
+        // Datasets derived from one have their own fingerprints, and the original is not changed
+        Dataset derived = whiskey.replaceFields(new Field[]{whiskey.field("Name"), whiskey.field("Rating")});
+        assertNotEquals(print, OutputCache.fingerprint("a", new Object[]{derived}));
+        assertNull(whiskey.property("fingerprint"));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.build.util;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptWriterTest {
+
+    @Test
+    public void testColumns() {
+        ScriptWriter out = new ScriptWriter(true);
+        out.add("x").ln();
+        out.add("var a").at(10).add("= 1").endStatement();
+        out.add("var bb").at(10).add("= 2").endStatement();
+        out.continueOnNextLine("x", "\n", "y").add("z");
+        assertEquals("x\nvar a     = 1;\nvar bb    = 2;\nx\ny\n  z", out.content());
+    }
+
+    @Test
+    public void testQuotedWrapping() {
+        List<String> items = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) items.add("item" + i);
+
+        ScriptWriter out = new ScriptWriter(true);
+        out.add("var items = [").addQuotedCollection(items).add("]").endStatement();
+        String[] lines = out.content().split("\n");
+        assertTrue(lines.length > 10);
+        for (String line : lines) assertTrue(line, line.length() <= 110);
+
+        out = new ScriptWriter(false);
+        out.add("var items = [").addQuoted(items.toArray()).add("]").endStatement();
+        for (String line : out.content().split("\n")) assertTrue(line, line.length() <= 90);
+    }
+
+    @Test
+    public void testCompact() {
+        ScriptWriter out = new ScriptWriter(false);
+        out.add("var a = 1,").comment("first");
+        out.add("    b = 2;").ln().ln();
+        out.indentMore().add("if (a) {\n    b++;\n}").ln();
+        out.titleComment("Section");
+        out.add("c();").ln();
+        assertEquals("var a = 1,\nb = 2;\nif (a) {\nb++;\n}\nc();\n", out.content());
+    }
+
+    @Test
+    public void testStreaming() {
+        List<String> items = new ArrayList<String>();
+        for (int i = 0; i < 5000; i++) items.add("item" + i);
+
+        ScriptWriter kept = new ScriptWriter(true);
+        StringWriter target = new StringWriter();
+        ScriptWriter streamed = new ScriptWriter(true, target);
+        for (ScriptWriter out : new ScriptWriter[]{kept, streamed}) {
+            out.titleComment("Items");
+            out.add("var items = [").addQuotedCollection(items).add("]").endStatement();
+            out.add("var x").at(20).comment("aligned after streaming");
+        }
+
+        // Some is sent before the end, and all of it once flushed
+        assertTrue(target.getBuffer().length() > 0);
+        streamed.flush();
+        assertEquals(kept.content(), target.toString());
+    }
+}
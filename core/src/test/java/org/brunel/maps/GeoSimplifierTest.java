@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.maps;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.brunel.build.util.ScriptWriter;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GeoSimplifierTest {
+
+    @Test
+    public void testTolerance() {
+        assertEquals(0.0625, GeoSimplifier.validTolerance(0.1), 1e-12);
+        assertEquals(1, GeoSimplifier.validTolerance(30), 1e-12);
+        assertTrue(GeoSimplifier.validTolerance(0) > 0);
+        assertTrue(GeoSimplifier.validTolerance(Double.NaN) > 0);
+        assertEquals(0.0625, GeoSimplifier.toleranceFor(new double[]{-180, 180, -90, 90}), 1e-12);
+    }
+
+    @Test
+    public void testSimplify() {
+        String source = "{\"type\":\"FeatureCollection\",\"features\":["
+                + feature(12, "Polygon", "[" + circle(10, 20, 5, 2000) + "," + circle(10, 20, 0.001, 10) + "]")
+                + "," + feature(13, "MultiPolygon", "[[" + circle(0, 0, 3, 500) + "],[" + circle(40, 40, 0.001, 8) + "]]")
+                + "," + feature(14, "Polygon", "[" + circle(-50, -20, 0.001, 20) + "]")
+                + "]}";
+
+        JsonObject result = new JsonParser().parse(GeoSimplifier.simplify(new StringReader(source), 0.01)).getAsJsonObject();
+        JsonArray features = result.getAsJsonArray("features");
+        assertEquals(3, features.size());
+
+        // The large circle is simplified, stays within the tolerance, and loses its tiny hole
+        JsonObject first = features.get(0).getAsJsonObject();
+        assertEquals(12, first.getAsJsonObject("properties").get("a").getAsInt());
+        JsonArray rings = coordinates(first);
+        assertEquals(1, rings.size());
+        JsonArray ring = rings.get(0).getAsJsonArray();
+        assertTrue(ring.size() < 200);
+        assertEquals(ring.get(0), ring.get(ring.size() - 1));
+        for (JsonElement e : ring) {
+            JsonArray p = e.getAsJsonArray();
+            double r = Math.hypot(p.get(0).getAsDouble() - 10, p.get(1).getAsDouble() - 20);
+            assertEquals(5, r, 0.011);
+        }
+
+        // The tiny island is removed
+        assertEquals(1, coordinates(features.get(1).getAsJsonObject()).size());
+
+        // A feature that is all too small keeps its outline
+        JsonArray tiny = coordinates(features.get(2).getAsJsonObject()).get(0).getAsJsonArray();
+        assertTrue(tiny.size() >= 4);
+    }
+
+    @Test
+    public void testSharedBorders() {
+        // Two neighbours share a wiggly border, each starting its ring at a different place and going the other way.
+        // The first has a hole that is filled exactly by a third feature, an enclave
+        int n = 400;
+        StringBuilder border = new StringBuilder();
+        for (int i = 0; i <= n; i++) {
+            double y = -1 + 2.0 * i / n;
+            double x = 0.05 * Math.sin(7 * y) + 0.02 * Math.sin(31 * y) + 0.001 * Math.sin(301 * y);
+            border.append(",[").append(x).append(",").append(y).append("]");
+        }
+        String left = "[[-1,1],[-1,-1]" + border + ",[-1,1]]";
+
+        // The right one goes clockwise from the middle of the border
+        String[] parts = border.substring(1).split(",(?=\\[)");
+        StringBuilder right = new StringBuilder("[");
+        for (int i = n / 2; i >= 0; i--) right.append(parts[i]).append(",");
+        right.append("[1,-1],[1,1]");
+        for (int i = n; i >= n / 2; i--) right.append(",").append(parts[i]);
+        right.append("]");
+
+        String hole = circle(-0.5, 0, 0.2, 300);
+        String enclave = reversed(circle(-0.5, 0, 0.2, 300));
+
+        String source = "{\"type\":\"FeatureCollection\",\"features\":["
+                + feature(1, "Polygon", "[" + left + "," + hole + "]") + ","
+                + feature(2, "Polygon", "[" + right + "]") + ","
+                + feature(3, "Polygon", "[" + enclave + "]") + "]}";
+        JsonArray features = new JsonParser().parse(GeoSimplifier.simplify(new StringReader(source), 0.01))
+                .getAsJsonObject().getAsJsonArray("features");
+
+        // Both sides of the border have the same vertices, as do the hole and the enclave
+        JsonArray a = coordinates(features.get(0).getAsJsonObject()), b = coordinates(features.get(1).getAsJsonObject());
+        Set<String> fromLeft = vertices(a.get(0).getAsJsonArray()), fromRight = vertices(b.get(0).getAsJsonArray());
+        fromLeft.remove("[-1,1]");
+        fromLeft.remove("[-1,-1]");
+        fromRight.remove("[1,1]");
+        fromRight.remove("[1,-1]");
+        assertTrue(fromLeft.size() > 10 && fromLeft.size() < 200);
+        assertEquals(fromLeft, fromRight);
+
+        JsonArray c = coordinates(features.get(2).getAsJsonObject());
+        assertTrue(vertices(a.get(1).getAsJsonArray()).size() < 100);
+        assertEquals(vertices(a.get(1).getAsJsonArray()), vertices(c.get(0).getAsJsonArray()));
+    }
+
+    @Test
+    public void testMappingUsesSimplifiedFeatures() {
+        GeoMapping mapping = GeoAnalysis.instance().make(new Object[]{"France", "Germany"});
+        GeoAnalysis.useSimplifiedFeatures("/brunel/geo/");
+        try {
+            ScriptWriter out = new ScriptWriter(true);
+            GeoAnalysis.writeMapping(out, mapping);
+            assertTrue(out.content(), out.content().contains("'/brunel/geo/WesternEurope.json?tolerance=0.00390625'"));
+        } finally {
+            GeoAnalysis.useSimplifiedFeatures(null);
+        }
+    }
+
+    private static JsonArray coordinates(JsonObject feature) {
+        return feature.getAsJsonObject("geometry").getAsJsonArray("coordinates");
+    }
+
+    private static String feature(int id, String type, String coordinates) {
+        return "{\"type\":\"Feature\",\"geometry\":{\"type\":\"" + type + "\",\"coordinates\":" + coordinates + "},"
+                + "\"properties\":{\"a\":" + id + "}}";
+    }
+
+    private static Set<String> vertices(JsonArray ring) {
+        Set<String> result = new HashSet<String>();
+        for (JsonElement p : ring) result.add(p.toString());
+        return result;
+    }
+
+    private static String reversed(String line) {
+        String[] parts = line.substring(1, line.length() - 1).split(",(?=\\[)");
+        StringBuilder b = new StringBuilder("[");
+        for (int i = parts.length - 1; i >= 0; i--) b.append(parts[i]).append(i > 0 ? "," : "]");
+        return b.toString();
+    }
+
+    private static String circle(double x, double y, double r, int n) {
+        StringBuilder b = new StringBuilder("[");
+        for (int i = 0; i <= n; i++) {
+            double a = 2 * Math.PI * (i % n) / n;
+            if (i > 0) b.append(",");
+            b.append("[").append(x + r * Math.cos(a)).append(",").append(y + r * Math.sin(a)).append("]");
+        }
+        return b.append("]").toString();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.maps;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProjectionTest {
+
+    @Test
+    public void testWinkelInverse() {
+        Projection p = GeoProjection.WINKEL3;
+        for (int lon = -180; lon <= 180; lon += 15)
+            for (int lat = -85; lat <= 85; lat += 5) {
+                double[] xy = p.transform(lon, lat);
+                double[] inverse = p.inverse(xy[0], xy[1]);
+                assertEquals(lon + "," + lat, lon, inverse[0], 1e-6);
+                assertEquals(lon + "," + lat, lat, inverse[1], 1e-6);
+            }
+    }
+
+    @Test
+    public void testExtents() {
+        // Compare to a dense sampling of the edges, using the parameters GeoProjection would choose for Albers
+        Projection albers = new Projection.Albers((-56 + 84 * 5) / 6.0, (-56 * 5 + 84) / 6.0, -10);
+        Projection[] projections = {GeoProjection.WINKEL3, albers};
+        for (Projection p : projections) {
+            double[] ext = p.maxExtents(-170, 190, -56, 84);
+            double[] expected = sampledExtents(p, -170, 190, -56, 84);
+            for (int i = 0; i < 4; i++) {
+                assertEquals(expected[i], ext[i], 1e-6);
+                // Our answer should always contain the sampled one
+                assertTrue(i % 2 == 0 ? ext[i] <= expected[i] + 1e-12 : ext[i] >= expected[i] - 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testWinkelCenter() {
+        GeoProjection projection = new GeoProjection("w", "h", "winkel3");
+        String description = projection.makeProjection(new double[]{-170, 190, -56, 84});
+        assertTrue(description, description.startsWith("winkel3()"));
+        assertTrue(description, description.endsWith(".center([10.0272, 6.6096])"));
+    }
+
+    private static double[] sampledExtents(Projection p, double x1, double x2, double y1, double y2) {
+        double[] ext = {Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE};
+        int n = 10000;
+        for (int i = 0; i <= n; i++) {
+            double x = x1 + i * (x2 - x1) / n, y = y1 + i * (y2 - y1) / n;
+            for (double[] q : new double[][]{p.transform(x, y1), p.transform(x, y2), p.transform(x1, y), p.transform(x2, y)}) {
+                ext[0] = Math.min(ext[0], q[0]);
+                ext[1] = Math.max(ext[1], q[0]);
+                ext[2] = Math.min(ext[2], q[1]);
+                ext[3] = Math.max(ext[3], q[1]);
+            }
+        }
+        return ext;
+    }
+}
@@ -3,11 +3,16 @@ package org.brunel.maps;
 import org.brunel.data.Data;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
 
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNotSame;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertSame;
 
 /**
  * Tests the output
@@ -53,4 +58,47 @@ public class TestAnalyze {
         assertEquals("Nowhere", a.unmatched.get(0));
         assertEquals("AL:[0, 3482] FRA:[1, 73] GER:[1, 58] IA:[0, 3470] IL:[0, 3487] IN:[0, 3488] NY:[0, 3500] TX:[0, 3477]", dump(a.mapping));
     }
+
+    @Test
+    public void testNearMatches() {
+        GeoMapping a = GeoAnalysis.instance().make("Untied States,Canda,Mexico,Nowhere".split(","));
+        assertEquals(1, a.result.length);
+        assertEquals("NorthAmerica", a.result[0].name);
+        assertEquals("[Nowhere]", a.unmatched.toString());
+
+        GeoIndex index = GeoAnalysis.instance().featureMap;
+        assertEquals(Arrays.deepToString(index.get("france")), Arrays.deepToString(index.getClosest("frence", 1)));
+        assertEquals(Arrays.deepToString(index.get("france")), Arrays.deepToString(index.getClosest("frnace", 2)));
+        assertNull(index.getClosest("frnace", 1));
+        assertEquals(Arrays.deepToString(index.get("kentucky")), Arrays.deepToString(index.getByPrefix("kentuc")));
+        assertNull(index.getByPrefix("united"));
+    }
+
+    @Test
+    public void testCached() {
+        GeoMapping a = GeoAnalysis.instance().make("Iowa,Texas,Utah".split(","));
+        assertSame(a, GeoAnalysis.instance().make("Iowa,Texas,Utah".split(",")));
+        assertNotSame(a, GeoAnalysis.instance().make("Iowa,Texas,Ohio".split(",")));
+    }
+
+    @Test
+    public void testBinaryIndex() throws Exception {
+        byte[] bytes = GeoIndex.compile(GeoIndex.class.getResourceAsStream(GeoIndex.TEXT));
+        File file = File.createTempFile("geoindex", ".bin");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes);
+        out.close();
+
+        // The mapped file must give the same answers as the index in use
+        GeoIndex mapped = GeoIndex.read(file.toURI().toURL());
+        GeoIndex index = GeoAnalysis.instance().featureMap;
+        assertEquals(index.size(), mapped.size());
+        assertEquals(Arrays.toString(index.files()), Arrays.toString(mapped.files()));
+        for (String s : "france,lux,luxembourg,sao tome and principe,são tomé and príncipe,ny,tx,d.c.,a,zzzz,".split(","))
+            assertEquals(s, Arrays.deepToString(index.get(s)), Arrays.deepToString(mapped.get(s)));
+        assertEquals("[[0, 73], [2, 73], [4, 73], [20, 73], [34, 73]]", Arrays.deepToString(mapped.get("france")));
+        assertNull(mapped.get("nowhere"));
+        assertNull(mapped.get(""));
+    }
 }
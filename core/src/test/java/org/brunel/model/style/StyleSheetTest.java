@@ -20,6 +20,8 @@ package org.brunel.model.style;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class StyleSheetTest {
@@ -58,4 +60,38 @@ public class StyleSheetTest {
         assertEquals(good, StyleFactory.instance().makeStyleSheet("a {x:1; :a:b,}").toString());
     }
 
+    @Test
+    public void testMatching() {
+        StyleSheet sheet = StyleFactory.instance().makeStyleSheet(
+                "* {fill:black} text {fill:red} .axis text {fill:blue} text.title {fill:green} .c {size:3}");
+        StyleTarget axis = new StyleTarget("g", null, "axis");
+        assertEquals("blue", sheet.get(new StyleTarget("text", axis), "fill"));
+        assertEquals("green", sheet.get(new StyleTarget("text", axis, "title"), "fill"));
+        assertEquals("red", sheet.get(new StyleTarget("text", null), "fill"));
+        assertEquals("black", sheet.get(new StyleTarget("rect", axis, "c"), "fill"));
+        assertEquals("3", sheet.get(new StyleTarget("rect", axis, "c"), "size"));
+        assertNull(sheet.get(new StyleTarget("rect", axis), "size"));
+
+        // Remembered results must not survive changes to the sheet
+        sheet.add(".axis rect {size:4}");
+        assertEquals("4", sheet.get(new StyleTarget("rect", axis), "size"));
+        assertEquals("{fill=black, size=4}", sheet.stylesFor(axis, "rect").toString());
+        assertEquals("{fill=blue}", sheet.stylesFor(axis, "text").toString());
+        sheet.clear();
+        assertNull(sheet.get(new StyleTarget("rect", axis), "size"));
+    }
+
+    @Test
+    public void testParsedSheetsShared() {
+        StyleSheet a = StyleFactory.instance().makeStyleSheet("text {fill:red}");
+        a.add("rect {fill:blue}");
+
+        // The same text gives a new sheet, unaffected by changes to the earlier one
+        StyleSheet b = StyleFactory.instance().makeStyleSheet("text {fill:red}");
+        assertNotSame(a, b);
+        assertEquals("text {\n\tfill: red;\n}\n", b.toString());
+        assertEquals("blue", a.get(new StyleTarget("rect", null), "fill"));
+        assertNull(b.get(new StyleTarget("rect", null), "fill"));
+    }
+
 }
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.util;
+
+import org.brunel.build.util.BuilderOptions;
+import org.brunel.data.CannedData;
+import org.junit.Test;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class D3IntegrationTest {
+
+    @Test
+    public void testCachedResult() {
+        BrunelD3Result result = D3Integration.createBrunelResult(CannedData.whiskey, "x(Country) y(Rating) mean(Rating)",
+                400, 300, "vis");
+        assertTrue(result.js.contains(new BuilderOptions().className + "(visId)"));
+        assertSame(result, D3Integration.createBrunelResult(new String(CannedData.whiskey),
+                "y(Rating) x(Country) mean(Rating)", 400, 300, "vis"));
+    }
+
+    @Test
+    public void testErrors() {
+        // Both syntax errors and errors building are reported in the same way
+        String[] bad = {"x(Country", "x(Country) y(nonexistent)"};
+        for (String brunel : bad) {
+            try {
+                D3Integration.createBrunelJSON(CannedData.whiskey, brunel, 400, 300, "vis");
+                fail("Expected an error for " + brunel);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().equals("Could not execute Brunel: " + brunel));
+            }
+        }
+    }
+}
@@ -21,6 +21,7 @@ import org.brunel.data.util.Dates;
 import org.brunel.data.util.Range;
 import org.brunel.data.values.ColumnProvider;
 import org.brunel.data.values.ConstantProvider;
+import org.brunel.data.values.Provider;
 import org.brunel.data.values.ReorderedProvider;
 import org.brunel.data.values.RowProvider;
 import org.brunel.translator.JSTranslation;
@@ -275,6 +276,16 @@ public class Data {
         return new Field(name, label, new ReorderedProvider(new ColumnProvider(items), indices));
     }
 
+    /* Marks the statistics of a field as calculated, when they have been set from stored values */
+    public static void setStatisticsCalculated(Field field, boolean numeric) {
+        field.setStatisticsCalculated(numeric);
+    }
+
+    /* Makes a field from any provider of data */
+    public static Field makeField(String name, String label, Provider provider) {
+        return new Field(name, label, provider);
+    }
+
     public static Field toNumeric(Field f) {
         if (f.isNumeric()) return f;
         boolean changed = false;
@@ -31,11 +31,11 @@ import org.brunel.data.util.Informative;
 import org.brunel.data.values.ColumnProvider;
 import org.brunel.translator.JSTranslation;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -61,6 +61,91 @@ public class Dataset extends Informative implements Serializable {
         return make(fields);
     }
 
+    /**
+     * Make a dataset from columns of data. Each column has a type code describing how it is stored:
+     * 'v' -- an array of values, one per row
+     * 'k' -- a pair of arrays: a dictionary of unique values, and an index into it for each row
+     * 'd' -- dates as an array of milliseconds since 1970, one per row
+     * 'b' -- a base64 string of little-endian 8-byte doubles, one per row, with NaN for missing values
+     * Required for JavaScript
+     *
+     * @param names   field names
+     * @param types   type code for each column
+     * @param columns the column data, as described above
+     * @return result data set, autoconverted
+     */
+    public static Dataset makeFromColumns(String[] names, String[] types, Object[] columns) {
+        Field[] fields = new Field[names.length];
+        for (int j = 0; j < fields.length; j++) {
+            String type = types[j];
+            if (type.equals("k")) {
+                Object[] pair = (Object[]) columns[j];
+                fields[j] = Data.makeIndexedColumnField(names[j], null, (Object[]) pair[0], (int[]) pair[1]);
+            } else if (type.equals("d")) {
+                Object[] millis = (Object[]) columns[j];
+                Object[] dates = new Object[millis.length];
+                for (int i = 0; i < dates.length; i++)
+                    if (millis[i] != null) dates[i] = makeDate(((Number) millis[i]).doubleValue());
+                fields[j] = Data.makeColumnField(names[j], null, dates);
+                fields[j].set("date", true);
+                fields[j].set("numeric", true);
+            } else if (type.equals("b")) {
+                fields[j] = Data.makeColumnField(names[j], null, decodeDoubles((String) columns[j]));
+            } else {
+                fields[j] = Data.makeColumnField(names[j], null, (Object[]) columns[j]);
+            }
+        }
+        return make(fields);
+    }
+
+    /**
+     * Make a dataset from fields that are already complete, such as the results of transforms run elsewhere.
+     * Unlike the other methods, no fields are added and no conversions are made.
+     * Required for JavaScript
+     *
+     * @param fields the fields
+     * @return result data set
+     */
+    public static Dataset makeFromFields(Field[] fields) {
+        return new Dataset(fields);
+    }
+
+    @JSTranslation(js = {"return new Date(millis);"})
+    private static Date makeDate(double millis) {
+        return new Date(Math.round(millis));
+    }
+
+    @JSTranslation(js = {
+            "var s = atob(text), v = new DataView(new ArrayBuffer(s.length)), result = [], i, d;",
+            "for (i = 0; i < s.length; i++) v.setUint8(i, s.charCodeAt(i));",
+            "for (i = 0; i < s.length / 8; i++) {",
+            "  d = v.getFloat64(8 * i, true);",
+            "  result.push(isNaN(d) ? null : d);",
+            "}",
+            "return result;"
+    })
+    private static Object[] decodeDoubles(String text) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        byte[] bytes = new byte[text.length() / 4 * 3];
+        int n = 0, bits = 0, count = 0;
+        for (int i = 0; i < text.length() && text.charAt(i) != '='; i++) {
+            bits = ((bits << 6) | alphabet.indexOf(text.charAt(i))) & 0x3fff;
+            count += 6;
+            if (count >= 8) {
+                count -= 8;
+                bytes[n++] = (byte) (bits >> count);
+            }
+        }
+        Object[] result = new Object[n / 8];
+        for (int i = 0; i < result.length; i++) {
+            long b = 0;
+            for (int k = 0; k < 8; k++) b |= (long) (bytes[8 * i + k] & 0xff) << (8 * k);
+            double d = Double.longBitsToDouble(b);
+            result[i] = Double.isNaN(d) ? null : d;
+        }
+        return result;
+    }
+
     @JSTranslation(ignore = true)
     public static Dataset make(Field[] fields) {
         return make(fields, null);
@@ -282,19 +367,12 @@ public class Dataset extends Informative implements Serializable {
 
     @JSTranslation(ignore = true)
     private void writeObject(java.io.ObjectOutputStream out) throws IOException {
-        out.write(Serialize.serializeDataset(this));
+        Serialize.serialize(this, out);
     }
 
     @JSTranslation(ignore = true)
     private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
-        ByteArrayOutputStream store = new ByteArrayOutputStream();
-        byte[] block = new byte[10240];
-        for(;;) {
-            int len = in.read(block);
-            if (len <0) break;
-            store.write(block, 0, len);
-        }
-        Dataset d = (Dataset) Serialize.deserialize(store.toByteArray());
+        Dataset d = (Dataset) Serialize.deserialize(in);
         fields = d.fields;
         fieldByName = d.fieldByName;
         info = new HashMap<String, Object>();
@@ -116,6 +116,15 @@ public class Field extends Informative implements Comparable<Field> {
         set("categories", cats);
     }
 
+    /*
+     * Records that the nominal statistics, and optionally the numeric ones, have been set from stored values.
+     * They will not be calculated again, which would replace the stored values
+     */
+    void setStatisticsCalculated(boolean numeric) {
+        calculatedNominal = true;
+        if (numeric) calculatedNumeric = true;
+    }
+
     private void makeDateStats() {
         if (isNumeric()) DateStats.populate(this);
         calculatedDate = true;
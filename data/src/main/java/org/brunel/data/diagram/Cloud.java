@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.data.diagram;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cloud layout places items (usually text) around a spiral, starting at the center, so that none overlap.
+ * Items are placed one at a time, in order, given their sizes. Each is moved out along the spiral until it does not
+ * hit any item already placed. Placed items are kept in a grid of cells so each trial location only needs to be
+ * tested against the items near it, rather than against every item placed so far. Placed items are also grouped by
+ * size, so the start angle for an item is found from whole groups, only looking at single items in groups that straddle
+ * the item's size.
+ */
+public class Cloud {
+
+    /**
+     * Create a layout for the given number of items
+     *
+     * @param count  number of items that will be placed
+     * @param width  width of the space to fill
+     * @param height height of the space to fill
+     * @return layout, ready to place items
+     */
+    public static Cloud make(int count, double width, double height) {
+        return new Cloud(count, width, height);
+    }
+
+    /**
+     * Lay out all items in one pass
+     *
+     * @param widths  item widths
+     * @param heights item heights
+     * @param width   width of the space to fill
+     * @param height  height of the space to fill
+     * @return item centers, as [x, y], relative to the cloud center
+     */
+    public static double[][] layout(double[] widths, double[] heights, double width, double height) {
+        Cloud cloud = new Cloud(widths.length, width, height);
+        double[][] result = new double[widths.length][];
+        for (int i = 0; i < widths.length; i++)
+            result[i] = cloud.place(widths[i], heights[i]);
+        return result;
+    }
+
+    // Delta is the distance between locations as we step along the spiral to place items
+    // It is also the distance between curves of the spiral.
+    // dx and dy are delta, but spread out to fit the space better for non-square results
+    // When we start searching out from the center in the spiral, we look for anything larger than us
+    // and start outside that. 'precision' reduces the concept of 'larger' so we search less space
+    private final double delta, precision, dx, dy;
+
+    private final List<double[]> placed = new ArrayList<double[]>();            // Items as [x, y, w, h, theta]
+    private final Map<Integer, List<double[]>> cells = new HashMap<Integer, List<double[]>>();
+    private final Map<Integer, List<double[]>> sized = new HashMap<Integer, List<double[]>>();  // Items by size group
+    private final Map<Integer, double[]> sizes = new HashMap<Integer, double[]>();  // Group [minW, maxW, minH, maxH, theta]
+    private double cellSize;                                                    // Set from the first item
+
+    private Cloud(int count, double width, double height) {
+        delta = Math.max(1, Math.pow(count / 300.0, 2));
+        precision = Math.pow(0.9, count / 100.0);
+        double size = Math.max(width, height);
+        dx = size > 0 ? delta * width / size : delta;
+        dy = size > 0 ? delta * height / size : delta;
+    }
+
+    /**
+     * Place the next item
+     *
+     * @param width  item width
+     * @param height item height
+     * @return the item center, as [x, y], relative to the cloud center
+     */
+    public double[] place(double width, double height) {
+        if (placed.isEmpty()) cellSize = Math.max(1, 2 * Math.min(width, height));
+
+        // Start outside any items at least this large
+        double theta = startAngle(width, height);
+
+        double[] item = new double[]{0, 0, width, height, theta};
+        while (true) {
+            // Set trial center location
+            item[0] = Math.cos(theta) * theta * dx;
+            item[1] = Math.sin(theta) * theta * dy;
+            item[4] = theta;
+            if (!hitsPlaced(item)) break;
+
+            // Outward on the spiral -- this is approximately the same as the arc sine and faster
+            theta += delta / Math.max(delta, Math.sqrt(item[0] * item[0] + item[1] * item[1]));
+        }
+
+        placed.add(item);
+        addToCells(item);
+        addToSizes(item);
+        return new double[]{item[0], item[1]};
+    }
+
+    /**
+     * The scale needed so the placed items fit in the space, when drawn centered in it
+     *
+     * @param width  width of the space
+     * @param height height of the space
+     * @return scale factor
+     */
+    public double scaleToFit(double width, double height) {
+        double sx = 0, sy = 0;
+        for (double[] p : placed) {
+            sx = Math.max(sx, Math.abs(p[0]) + p[2] / 2);
+            sy = Math.max(sy, Math.abs(p[1]) + p[3] / 2);
+        }
+        return Math.min(width / sx, height / sy) / 2;
+    }
+
+    // The largest angle of the placed items that count as larger than an item of this size
+    private double startAngle(double width, double height) {
+        double theta = 0;
+        for (Integer key : sizes.keySet()) {
+            double[] s = sizes.get(key);
+            if (s[4] <= theta) continue;                                        // Cannot make any difference
+            if (width < precision * s[0] || height <= precision * s[2]) continue;  // None are larger
+            if (width >= precision * s[1] && height > precision * s[3]) {
+                theta = s[4];                                                   // All are larger
+            } else {
+                for (double[] p : sized.get(key))                               // Check them one by one
+                    if (width >= precision * p[2] && height > precision * p[3]) theta = Math.max(theta, p[4]);
+            }
+        }
+        return theta;
+    }
+
+    private void addToSizes(double[] item) {
+        Integer key = key(sizeGroup(item[2]), sizeGroup(item[3]));
+        double[] s = sizes.get(key);
+        if (s == null) {
+            sizes.put(key, new double[]{item[2], item[2], item[3], item[3], item[4]});
+            sized.put(key, new ArrayList<double[]>());
+        } else {
+            s[0] = Math.min(s[0], item[2]);
+            s[1] = Math.max(s[1], item[2]);
+            s[2] = Math.min(s[2], item[3]);
+            s[3] = Math.max(s[3], item[3]);
+            s[4] = Math.max(s[4], item[4]);
+        }
+        sized.get(key).add(item);
+    }
+
+    // Groups sizes into steps of a quarter power of two
+    private static int sizeGroup(double v) {
+        return (int) Math.floor(4 * Math.log(Math.max(1, v)) / Math.log(2));
+    }
+
+    private boolean hitsPlaced(double[] item) {
+        int x1 = cell(item[0] - item[2] / 2), x2 = cell(item[0] + item[2] / 2);
+        int y1 = cell(item[1] - item[3] / 2), y2 = cell(item[1] + item[3] / 2);
+        for (int i = x1; i <= x2; i++)
+            for (int j = y1; j <= y2; j++) {
+                List<double[]> list = cells.get(key(i, j));
+                if (list != null) for (double[] p : list)
+                    if (intersects(item, p)) return true;
+            }
+        return false;
+    }
+
+    private void addToCells(double[] item) {
+        int x1 = cell(item[0] - item[2] / 2), x2 = cell(item[0] + item[2] / 2);
+        int y1 = cell(item[1] - item[3] / 2), y2 = cell(item[1] + item[3] / 2);
+        for (int i = x1; i <= x2; i++)
+            for (int j = y1; j <= y2; j++) {
+                Integer key = key(i, j);
+                List<double[]> list = cells.get(key);
+                if (list == null) {
+                    list = new ArrayList<double[]>();
+                    cells.put(key, list);
+                }
+                list.add(item);
+            }
+    }
+
+    private int cell(double v) {
+        return (int) Math.floor(v / cellSize);
+    }
+
+    private static Integer key(int i, int j) {
+        return i * 65536 + j;
+    }
+
+    private static boolean intersects(double[] a, double[] b) {
+        // Height first as that is less likely to overlap for long text; touching items count as overlapping
+        return a[1] + a[3] / 2 >= b[1] - b[3] / 2
+                && b[1] + b[3] / 2 >= a[1] - a[3] / 2
+                && a[0] + a[2] / 2 >= b[0] - b[2] / 2
+                && b[0] + b[2] / 2 >= a[0] - a[2] / 2;
+    }
+}
@@ -18,6 +18,9 @@
 package org.brunel.data.io;
 
 import org.brunel.data.Data;
+import org.brunel.data.values.ColumnProvider;
+import org.brunel.data.values.Provider;
+import org.brunel.data.values.ReorderedProvider;
 import org.brunel.translator.JSTranslation;
 
 import java.util.Date;
@@ -29,6 +32,7 @@ class ByteInput {
 
     private final byte[] data;
     private int p;
+    int version = 1;                // Serialization version of the stream, set when its header is read
 
     public Number readNumber() {
         /*
@@ -66,6 +70,68 @@ class ByteInput {
         return s.equals("NaN") ? Double.NaN : Double.parseDouble(s);
     }
 
+    public double readVarint() {
+        // Seven bits per byte, lowest first; the top bit says more bytes follow
+        double result = 0, multiplier = 1;
+        for (; ; ) {
+            int b = readByte() & 0xff;
+            result += (b % 128) * multiplier;
+            if (b < 128) return result;
+            multiplier *= 128;
+        }
+    }
+
+    public double readSignedVarint() {
+        // Undo the zig-zag encoding
+        double z = readVarint();
+        return z % 2 == 0 ? z / 2 : -(z + 1) / 2;
+    }
+
+    @JSTranslation(js = {
+            "var v = new DataView(new ArrayBuffer(8));",
+            "for (var i = 0; i < 8; i++) v.setUint8(i, this.readByte() & 255);",
+            "return v.getFloat64(0, true);"
+    })
+    public double readDoubleBits() {
+        long bits = 0;
+        for (int i = 0; i < 8; i++) bits |= (long) (readByte() & 0xff) << (8 * i);
+        return Double.longBitsToDouble(bits);
+    }
+
+    public int[] readPacked(int count, int bits) {
+        // Values use a fixed number of bits each, lowest bits first
+        int[] result = new int[count];
+        int pending = 0, pendingBits = 0;
+        for (int i = 0; i < count; i++) {
+            int value = 0, got = 0;
+            while (got < bits) {
+                if (pendingBits == 0) {
+                    pending = readByte() & 0xff;
+                    pendingBits = 8;
+                }
+                int take = Math.min(pendingBits, bits - got);
+                value |= (pending & ((1 << take) - 1)) << got;
+                pending = pending >>> take;
+                pendingBits -= take;
+                got += take;
+            }
+            result[i] = value;
+        }
+        return result;
+    }
+
+    /**
+     * Reads bit-packed codes for the rows of a field
+     *
+     * @param items the unique values the codes refer to
+     * @param count the number of rows
+     * @param bits  the number of bits in each code
+     * @return a provider of the row values
+     */
+    Provider readCodes(Object[] items, int count, int bits) {
+        return new ReorderedProvider(new ColumnProvider(items), readPacked(count, bits));
+    }
+
     @JSTranslation(js = {
             "var i, len, c, d, char2, char3, out=''",
             "for(;;) {",
@@ -21,6 +21,8 @@ import org.brunel.data.Data;
 import org.brunel.translator.JSTranslation;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.Date;
 
@@ -30,20 +32,29 @@ import java.util.Date;
 class ByteOutput {
 
     @JSTranslation(ignore = true)
-    private final ByteArrayOutputStream out;
+    private final OutputStream out;
 
     @JSTranslation(ignore = true)
     static final Charset ENCODING = Charset.forName("utf-8");
 
     @JSTranslation(js = {"this.out=[];"})
     ByteOutput() {
-        out = new ByteArrayOutputStream();
+        this(new ByteArrayOutputStream());
+    }
+
+    /*
+     * Writes directly to a stream; failures to write are thrown as IllegalStateExceptions with the IOException as
+     * their cause. asBytes() cannot be used on the result
+     */
+    @JSTranslation(ignore = true)
+    ByteOutput(OutputStream out) {
+        this.out = out;
     }
 
     @JSTranslation(js = {"this.out.push(b); return this"})
     public ByteOutput addByte(int b) {
         assert (b >= 0 && b <= 255);
-        out.write(b);
+        write(b);
         return this;
     }
 
@@ -91,6 +102,79 @@ class ByteOutput {
         return addNumber(Data.asNumeric(date));
     }
 
+    /**
+     * Adds a non-negative integer using seven bits per byte, lowest bits first. The top bit of each byte
+     * is set when more bytes follow. Double arithmetic is used so this works identically in Javascript.
+     *
+     * @param value non-negative integer less than 2^53
+     * @return this
+     */
+    public ByteOutput addVarint(double value) {
+        while (value >= 128) {
+            addByte((int) (value % 128) + 128);
+            value = Math.floor(value / 128);
+        }
+        return addByte((int) value);
+    }
+
+    /**
+     * Adds an integer that may be negative using zig-zag encoding (0, -1, 1, -2, 2 ... become 0, 1, 2, 3, 4 ...)
+     * so small magnitudes take few bytes.
+     *
+     * @param value integer with absolute value less than 2^52
+     * @return this
+     */
+    public ByteOutput addSignedVarint(double value) {
+        return addVarint(value >= 0 ? 2 * value : -2 * value - 1);
+    }
+
+    /**
+     * Adds the 8-byte IEEE representation of a double, least significant byte first
+     *
+     * @param value any double, including NaN
+     * @return this
+     */
+    @JSTranslation(js = {
+            "var v = new DataView(new ArrayBuffer(8));",
+            "v.setFloat64(0, value, true);",
+            "for (var i = 0; i < 8; i++) this.addByte(v.getUint8(i));",
+            "return this;"
+    })
+    public ByteOutput addDoubleBits(double value) {
+        long bits = Double.doubleToLongBits(value);
+        for (int i = 0; i < 8; i++) write((int) (bits >>> (8 * i)) & 0xff);
+        return this;
+    }
+
+    /**
+     * Adds integers packed together using a fixed number of bits for each, lowest bits first.
+     * Only 32-bit integer operations are used, so this works identically in Javascript.
+     *
+     * @param values non-negative integers, each less than 2^bits
+     * @param bits   the number of bits to use for each value, at most 31
+     * @return this
+     */
+    public ByteOutput addPacked(int[] values, int bits) {
+        int pending = 0, pendingBits = 0;
+        for (int value : values) {
+            int v = value, remaining = bits;
+            while (remaining > 0) {
+                int take = Math.min(8 - pendingBits, remaining);
+                pending |= (v & ((1 << take) - 1)) << pendingBits;
+                v = v >>> take;
+                remaining -= take;
+                pendingBits += take;
+                if (pendingBits == 8) {
+                    addByte(pending);
+                    pending = 0;
+                    pendingBits = 0;
+                }
+            }
+        }
+        if (pendingBits > 0) addByte(pending);
+        return this;
+    }
+
     @JSTranslation(js = {
             "if (s==null) return this.addByte(3);    // null encoded is '03'",
             "for (var i = 0; i < s.length; i++) {",
@@ -107,16 +191,25 @@ class ByteOutput {
     ByteOutput addString(String s) {
         // Encode a null as '3'
         if (s == null)
-            out.write(3);
+            write(3);
         else {
-            for (byte i : s.getBytes(ENCODING)) out.write(i);
-            out.write(0);
+            for (byte i : s.getBytes(ENCODING)) write(i);
+            write(0);
         }
         return this;
     }
 
+    @JSTranslation(ignore = true)
+    private void write(int b) {
+        try {
+            out.write(b);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed writing serialized data", e);
+        }
+    }
+
     @JSTranslation(js = {"return this.out;"})
     byte[] asBytes() {
-        return out.toByteArray();
+        return ((ByteArrayOutputStream) out).toByteArray();
     }
 }
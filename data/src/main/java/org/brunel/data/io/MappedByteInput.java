@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.data.io;
+
+import org.brunel.data.values.ColumnProvider;
+import org.brunel.data.values.PackedBufferProvider;
+import org.brunel.data.values.Provider;
+import org.brunel.translator.JSTranslation;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads serialized data from a buffer, typically a memory-mapped file.
+ * Row codes are not copied out of the buffer; the fields refer to them where they are
+ */
+@JSTranslation(ignore = true)
+class MappedByteInput extends ByteInput {
+
+    private final ByteBuffer buffer;
+    private int p;
+
+    MappedByteInput(ByteBuffer buffer) {
+        super(null);
+        this.buffer = buffer;
+        this.p = 0;
+    }
+
+    byte readByte() {
+        return buffer.get(p++);
+    }
+
+    String readString() {
+        if (buffer.get(p) == 3) {
+            p++;
+            return null;
+        }
+        int s = p;
+        while (buffer.get(p) != 0) p++;
+        byte[] bytes = new byte[p - s];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = buffer.get(s + i);
+        p++;
+        return new String(bytes, ByteOutput.ENCODING);
+    }
+
+    Provider readCodes(Object[] items, int count, int bits) {
+        Provider provider = new PackedBufferProvider(new ColumnProvider(items), buffer, p, count, bits);
+        p += (int) (((long) count * bits + 7) / 8);
+        return provider;
+    }
+}
@@ -20,7 +20,16 @@ package org.brunel.data.io;
 import org.brunel.data.Data;
 import org.brunel.data.Dataset;
 import org.brunel.data.Field;
+import org.brunel.translator.JSTranslation;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -28,7 +37,13 @@ import java.util.List;
 import java.util.Map;
 
 /**
- * This class serializes data items
+ * This class serializes data items.
+ * Each field is written as a column: a dictionary of its unique values, then a code per row indexing that dictionary,
+ * bit-packed to the fewest bits needed. Counts use variable length integers, dates and numbers with few decimal places
+ * are written as scaled integers, and other numeric data as raw 8-byte doubles. The statistics calculated for the
+ * field (counts, categories, min, max, granularity, ...) are written too for large fields, so reading them needs no
+ * recalculation; for small fields the statistics would be larger than the data and are quick to recalculate.
+ * Streams from versions 1 and 2 can still be read.
  */
 public class Serialize {
 
@@ -37,10 +52,31 @@ public class Serialize {
     public final static int NUMBER = 3;
     public final static int STRING = 4;
     public final static int DATE = 5;
-    public final static int VERSION=6;
+    public final static int VERSION = 6;
+    public final static int DECIMAL = 7;
 
-    public final static int DATASET_VERSION_NUMBER = 1;   //Must be incremented if serialization is changed in an incompatible way
+    public final static int DATASET_VERSION_NUMBER = 3;   //Must be incremented if serialization is changed in an incompatible way
 
+    /* Integers below this are delta encoded; the difference of any two of them is exactly representable */
+    private final static double MAX_DELTA_INTEGER = 4503599627370496.0;      // 2^52
+
+    /* Dates are stored as milliseconds (Data.MILLIS_PER_DAY is not available in Javascript) */
+    private final static double MILLIS_PER_DAY = 86400000.0;
+
+    /* The most decimal places we try to use when storing numbers as scaled integers */
+    private final static int MAX_DECIMAL_PLACES = 6;
+
+    /*
+     * Field statistics that are stored; they are identified by their index in this array.
+     * The first ones are created for all fields, the rest only for numeric ones
+     */
+    private final static String[] STATISTICS = {"n", "unique", "valid", "mode", "categories", "categoryCounts",
+            "validNumeric", "mean", "stddev", "variance", "skew", "kurtosis", "min", "max", "median", "q1", "q3",
+            "granularity"};
+    private final static int FIRST_NUMERIC_STATISTIC = 6;
+
+    /* Statistics are only stored for fields with at least this many rows */
+    private final static int MIN_ROWS_FOR_STATISTICS = 1000;
 
     /**
      * Return a serialized version of a dataset.
@@ -49,17 +85,40 @@ public class Serialize {
      * @return an array of bytes representing this data
      */
     public static byte[] serializeDataset(Dataset data) {
-        data = data.removeSpecialFields();
         ByteOutput s = new ByteOutput();
+        addDatasetToOutput(data, s);
+        return s.asBytes();
+    }
+
+    /**
+     * Write a serialized version of a dataset to a stream. The bytes are identical to those from serializeDataset,
+     * but each field is written as it is encoded, so the whole result is never held in memory.
+     * The stream is flushed, but not closed.
+     *
+     * @param data   the dataset to serialize
+     * @param stream where to write it
+     * @throws IOException if the stream cannot be written to
+     */
+    @JSTranslation(ignore = true)
+    public static void serialize(Dataset data, OutputStream stream) throws IOException {
+        BufferedOutputStream buffered = new BufferedOutputStream(stream);
+        try {
+            addDatasetToOutput(data, new ByteOutput(buffered));
+        } catch (IllegalStateException e) {
+            throw streamFailure(e);
+        }
+        buffered.flush();
+    }
+
+    private static void addDatasetToOutput(Dataset data, ByteOutput s) {
+        data = data.removeSpecialFields();
 
         //Add versioning
         s.addByte(VERSION).addNumber(DATASET_VERSION_NUMBER);
 
         // Basics, then each field
-        s.addByte(DATA_SET).addNumber(data.fields.length);
+        s.addByte(DATA_SET).addVarint(data.fields.length);
         for (Field f : data.fields) addFieldToOutput(f, s);
-
-        return s.asBytes();
     }
 
     /**
@@ -70,6 +129,7 @@ public class Serialize {
      */
     public static byte[] serializeField(Field field) {
         ByteOutput s = new ByteOutput();
+        s.addByte(VERSION).addNumber(DATASET_VERSION_NUMBER);
         addFieldToOutput(field, s);
         return s.asBytes();
     }
@@ -79,9 +139,15 @@ public class Serialize {
         int N = field.rowCount();
         s.addByte(FIELD).addString(field.name).addString(field.label);
 
-        // Assemble map of data to indices
+        // Assemble map of data to indices. The categories go first, in order, so they can be stored as just a count
         Map<Object, Integer> items = new HashMap<Object, Integer>();
         List<Object> uniques = new ArrayList<Object>();
+        for (Object value : field.categories()) {
+            if (!items.containsKey(value)) {
+                items.put(value, items.size());
+                uniques.add(value);
+            }
+        }
         for (int i = 0; i < N; i++) {
             Object value = field.value(i);
             if (!items.containsKey(value)) {
@@ -91,21 +157,141 @@ public class Serialize {
         }
 
         // Add the unique data values
-        s.addNumber(uniques.size());
+        s.addVarint(uniques.size());
         if (field.isDate()) {
             s.addByte(DATE);
-            for (Object o : uniques) s.addDate((Date) o);
+            addIntegers(uniques, MILLIS_PER_DAY, s);
+        } else if (field.isNumeric() && decimalPlaces(uniques) >= 0) {
+            int places = decimalPlaces(uniques);
+            s.addByte(DECIMAL).addByte(places);
+            addIntegers(uniques, Math.pow(10, places), s);
         } else if (field.isNumeric()) {
             s.addByte(NUMBER);
-            for (Object o : uniques) s.addNumber((Number) o);
+            addNullIndex(uniques, s);
+            for (Object o : uniques) if (o != null) s.addDoubleBits(Data.asNumeric(o));
         } else {
             s.addByte(STRING);
             for (Object o : uniques) s.addString((String) o);
         }
 
-        // And now the values
-        s.addNumber(N);
-        for (int i = 0; i < N; i++) s.addNumber(items.get(field.value(i)));
+        // And now the values, using as few bits as we need for each
+        int[] codes = new int[N];
+        for (int i = 0; i < N; i++) codes[i] = items.get(field.value(i));
+        int bits = bitsNeeded(uniques.size());
+        s.addVarint(N).addByte(bits).addPacked(codes, bits);
+
+        // The statistics, so they need not be recalculated when read
+        List<Integer> stored = new ArrayList<Integer>();
+        int statCount = N < MIN_ROWS_FOR_STATISTICS ? 0
+                : field.isNumeric() ? STATISTICS.length : FIRST_NUMERIC_STATISTIC;
+        for (int i = 0; i < statCount; i++)
+            if (storable(STATISTICS[i], field.property(STATISTICS[i]), items)) stored.add(i);
+        s.addVarint(stored.size());
+        for (int i : stored) addStatistic(i, field.property(STATISTICS[i]), items, s);
+    }
+
+    private static int bitsNeeded(int uniqueCount) {
+        int bits = 0;
+        while (uniqueCount - 1 >= Math.pow(2, bits)) bits++;
+        return bits;
+    }
+
+    /* Data values in statistics are stored as dictionary indices, so they must be in the dictionary */
+    private static boolean storable(String key, Object value, Map<Object, Integer> items) {
+        if (value == null) return false;
+        if (key.equals("mode")) return items.containsKey(value);
+        if (key.equals("categories")) {
+            // These must be the start of the dictionary
+            Object[] categories = (Object[]) value;
+            for (int i = 0; i < categories.length; i++) {
+                Integer index = items.get(categories[i]);
+                if (index == null || index != i) return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Data values are written as indices into the dictionary, integer counts as varints, and other statistics
+     * as doubles. The categories are the start of the dictionary, so only their number is written
+     */
+    private static void addStatistic(int index, Object value, Map<Object, Integer> items, ByteOutput s) {
+        String key = STATISTICS[index];
+        s.addByte(index);
+        if (key.equals("mode")) {
+            s.addVarint(items.get(value));
+        } else if (key.equals("categories")) {
+            s.addVarint(((Object[]) value).length);
+        } else if (key.equals("categoryCounts")) {
+            int[] counts = (int[]) value;
+            s.addVarint(counts.length);
+            for (int c : counts) s.addVarint(c);
+        } else if (isIntegerStatistic(key)) {
+            s.addVarint((Integer) value);
+        } else {
+            s.addDoubleBits(((Number) value).doubleValue());
+        }
+    }
+
+    private static boolean isIntegerStatistic(String key) {
+        return key.equals("n") || key.equals("unique") || key.equals("valid") || key.equals("validNumeric");
+    }
+
+    /*
+     * The fewest decimal places that represent every value exactly as a scaled integer (so that dividing the
+     * integer by the scale gives back the identical double), or -1 if there is no such number of places
+     */
+    private static int decimalPlaces(List<Object> uniques) {
+        for (int places = 0; places <= MAX_DECIMAL_PLACES; places++) {
+            double scale = Math.pow(10, places);
+            boolean ok = true;
+            for (Object o : uniques) {
+                if (o == null) continue;
+                double v = Data.asNumeric(o);
+                double scaled = Math.round(v * scale);
+                if (Math.abs(scaled) >= MAX_DELTA_INTEGER || scaled / scale != v) {
+                    ok = false;
+                    break;
+                }
+            }
+            if (ok) return places;
+        }
+        return -1;
+    }
+
+    /*
+     * Writes the values multiplied by the scale as non-negative integer offsets from the smallest one. If they
+     * are in ascending order we instead write the differences from the previous value, which are smaller still
+     */
+    private static void addIntegers(List<Object> uniques, double scale, ByteOutput s) {
+        boolean ascending = true;
+        Double base = null, last = null;
+        for (Object o : uniques) {
+            if (o == null) continue;
+            double v = Math.round(Data.asNumeric(o) * scale);
+            if (last != null && v < last) ascending = false;
+            if (base == null || v < base) base = v;
+            last = v;
+        }
+        if (base == null) base = 0.0;
+
+        s.addByte(ascending ? 1 : 0);
+        addNullIndex(uniques, s);
+        s.addSignedVarint(base);
+        double previous = base;
+        for (Object o : uniques) {
+            if (o == null) continue;
+            double v = Math.round(Data.asNumeric(o) * scale);
+            s.addVarint(v - previous);
+            if (ascending) previous = v;
+        }
+    }
+
+    /* Numeric encodings have no null value, so we record where the null is (zero means there is none) */
+    private static void addNullIndex(List<Object> uniques, ByteOutput s) {
+        int nullIndex = -1;
+        for (int i = 0; i < uniques.size(); i++) if (uniques.get(i) == null) nullIndex = i;
+        s.addVarint(nullIndex + 1);
     }
 
     public static Object deserialize(byte[] data) {
@@ -113,7 +299,55 @@ public class Serialize {
         return readFromByteInput(d);
     }
 
-    private static Object readFromByteInput(ByteInput d)  {
+    /**
+     * Reads a serialized item from a file by mapping it into memory. For the current version, the rows of each
+     * field are not copied; they are decoded from the mapped file as they are accessed, so opening a large
+     * dataset only costs reading the unique values and statistics of each field.
+     * The file must not be modified while the result is in use.
+     *
+     * @param file file containing the result of one of the serialize methods
+     * @return the deserialized item
+     * @throws IOException if the file cannot be read
+     */
+    @JSTranslation(ignore = true)
+    public static Object deserialize(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("File too large to map: " + file);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return readFromByteInput(new MappedByteInput(buffer));
+        } finally {
+            raf.close();                    // The mapping remains valid after closing
+        }
+    }
+
+    /**
+     * Reads a serialized item from a stream, as written by serialize(Dataset, OutputStream) or one of the methods
+     * returning bytes. The data is read as it is decoded, without first collecting all the bytes.
+     * The stream is buffered internally, so it may be read past the end of the item; it is not closed.
+     *
+     * @param stream stream to read
+     * @return the deserialized item
+     * @throws IOException if the stream cannot be read, or ends before the item is complete
+     */
+    @JSTranslation(ignore = true)
+    public static Object deserialize(InputStream stream) throws IOException {
+        try {
+            return readFromByteInput(new StreamByteInput(stream));
+        } catch (IllegalStateException e) {
+            throw streamFailure(e);
+        }
+    }
+
+    /* Stream failures are thrown as unchecked exceptions while encoding; this recovers the original */
+    @JSTranslation(ignore = true)
+    private static IOException streamFailure(IllegalStateException e) {
+        if (e.getCause() instanceof IOException) return (IOException) e.getCause();
+        throw e;
+    }
+
+    private static Object readFromByteInput(ByteInput d) {
         byte b = d.readByte();
         if (b == FIELD) {
             // Fields have name, label, and the rows of data
@@ -121,48 +355,120 @@ public class Serialize {
             String label = d.readString();
 
             // Read number of unique values and their type
-            int uniqueCount = d.readNumber().intValue();
+            int uniqueCount = readCount(d);
             b = d.readByte();
 
             // Read unique values
-            Object[] items = new Object[uniqueCount];
-            for (int i = 0; i < uniqueCount; i++) {
-                if (b == NUMBER)
-                    items[i] = d.readNumber();
-                else if (b == STRING)
-                    items[i] = d.readString();
-                else if (b == DATE)
-                    items[i] = d.readDate();
-                else
-                    throw new IllegalStateException("Unknown column type " + b);
-            }
+            Object[] items = d.version == 1 ? readItemsVersion1(d, b, uniqueCount) : readItems(d, b, uniqueCount);
 
             // Now create the actual data
-            int len = d.readNumber().intValue();
-            int[] indices = new int[len];
-            for (int i=0; i<len; i++) indices[i] = d.readNumber().intValue();
-            Field field = Data.makeIndexedColumnField(name, label, items, indices);
+            int len = readCount(d);
+            Field field;
+            if (d.version < 3) {
+                int[] indices = new int[len];
+                for (int i = 0; i < len; i++) indices[i] = readCount(d);
+                field = Data.makeIndexedColumnField(name, label, items, indices);
+            } else {
+                field = Data.makeField(name, label, d.readCodes(items, len, d.readByte()));
+            }
 
-            if (b == NUMBER || b == DATE) field.set("numeric", true);
+            if (b == NUMBER || b == DECIMAL || b == DATE) field.set("numeric", true);
             if (b == DATE) field.set("date", true);
 
+            if (d.version >= 3) {
+                int statCount = (int) d.readVarint();
+                for (int i = 0; i < statCount; i++) readStatistic(field, items, d);
+
+                // Unset statistics were not stored because they have no value, so none need calculating
+                if (statCount > 0) Data.setStatisticsCalculated(field, b != STRING);
+            }
+
             return field;
         } else if (b == DATA_SET) {
             // Dataset consists of fields
-            int len = d.readNumber().intValue();
+            int len = readCount(d);
             Field[] fields = new Field[len];
             for (int i = 0; i < len; i++) fields[i] = (Field) readFromByteInput(d);
             return Dataset.make(fields, false);     // No need to autoconvert
+        } else if (b == VERSION) {
+            int versionNum = d.readNumber().intValue();
+            if (versionNum < 1 || versionNum > DATASET_VERSION_NUMBER) {
+                throw new IllegalStateException("Serialized version differs from current execution version");
+            }
+            d.version = versionNum;
+            return readFromByteInput(d);
+        } else {
+            throw new IllegalArgumentException("Unknown class: " + b);
         }
-        else if (b == VERSION) {
-        	int versionNum = d.readNumber().intValue();
-        	if (versionNum != DATASET_VERSION_NUMBER ) {
-        		throw new IllegalStateException("Serialized version differs from current execution version");
-        	}
-        	return readFromByteInput(d);
+    }
+
+    private static void readStatistic(Field field, Object[] items, ByteInput d) {
+        int index = d.readByte();
+        if (index < 0 || index >= STATISTICS.length)
+            throw new IllegalStateException("Unknown statistic " + index);
+        String key = STATISTICS[index];
+        if (key.equals("mode")) {
+            field.set(key, items[(int) d.readVarint()]);
+        } else if (key.equals("categories")) {
+            Object[] values = new Object[(int) d.readVarint()];
+            for (int i = 0; i < values.length; i++) values[i] = items[i];
+            field.set(key, values);
+        } else if (key.equals("categoryCounts")) {
+            int[] counts = new int[(int) d.readVarint()];
+            for (int i = 0; i < counts.length; i++) counts[i] = (int) d.readVarint();
+            field.set(key, counts);
+        } else if (isIntegerStatistic(key)) {
+            field.set(key, (int) d.readVarint());
+        } else {
+            field.set(key, d.readDoubleBits());
         }
-        else {
-            throw new IllegalArgumentException("Unknown class: " + b);
+    }
+
+    private static int readCount(ByteInput d) {
+        return d.version == 1 ? d.readNumber().intValue() : (int) d.readVarint();
+    }
+
+    private static Object[] readItems(ByteInput d, byte b, int uniqueCount) {
+        Object[] items = new Object[uniqueCount];
+        if (b == STRING) {
+            for (int i = 0; i < uniqueCount; i++) items[i] = d.readString();
+            return items;
+        }
+        if (b != NUMBER && b != DECIMAL && b != DATE)
+            throw new IllegalStateException("Unknown column type " + b);
+
+        double scale = b == DECIMAL ? Math.pow(10, d.readByte()) : MILLIS_PER_DAY;
+        boolean ascending = b != NUMBER && d.readByte() == 1;
+        int nullIndex = (int) d.readVarint() - 1;
+        double previous = b == NUMBER ? 0 : d.readSignedVarint();
+        for (int i = 0; i < uniqueCount; i++) {
+            if (i == nullIndex) continue;
+            if (b == NUMBER) {
+                items[i] = d.readDoubleBits();
+            } else {
+                double v = previous + d.readVarint();
+                if (ascending) previous = v;
+                if (b == DATE)
+                    items[i] = Data.asDate(v / scale);
+                else
+                    items[i] = v / scale;
+            }
+        }
+        return items;
+    }
+
+    private static Object[] readItemsVersion1(ByteInput d, byte b, int uniqueCount) {
+        Object[] items = new Object[uniqueCount];
+        for (int i = 0; i < uniqueCount; i++) {
+            if (b == NUMBER)
+                items[i] = d.readNumber();
+            else if (b == STRING)
+                items[i] = d.readString();
+            else if (b == DATE)
+                items[i] = d.readDate();
+            else
+                throw new IllegalStateException("Unknown column type " + b);
         }
+        return items;
     }
 }
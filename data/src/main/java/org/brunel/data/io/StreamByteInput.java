@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.data.io;
+
+import org.brunel.translator.JSTranslation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads serialized data from a stream as it is needed.
+ * Failures to read are thrown as IllegalStateExceptions with the IOException as their cause
+ */
+@JSTranslation(ignore = true)
+class StreamByteInput extends ByteInput {
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private int p, end;                                 // Position of next byte in the buffer, and buffer end
+
+    StreamByteInput(InputStream in) {
+        super(null);
+        this.in = in;
+    }
+
+    byte readByte() {
+        if (p == end) fill();
+        return buffer[p++];
+    }
+
+    String readString() {
+        byte b = readByte();
+        if (b == 3) return null;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        while (b != 0) {
+            bytes.write(b);
+            b = readByte();
+        }
+        return new String(bytes.toByteArray(), ByteOutput.ENCODING);
+    }
+
+    private void fill() {
+        try {
+            int n;
+            do n = in.read(buffer); while (n == 0);
+            if (n < 0) throw new EOFException("Serialized data ended unexpectedly");
+            p = 0;
+            end = n;
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed reading serialized data", e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.data.values;
+
+import org.brunel.translator.JSTranslation;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Provides values by looking up codes that are bit-packed in a buffer (usually a memory-mapped file).
+ * The codes are decoded on each access rather than being copied into memory.
+ */
+@JSTranslation(ignore = true)
+public class PackedBufferProvider implements Provider {
+
+    private final Provider base;            // The unique values the codes refer to
+    private final ByteBuffer buffer;
+    private final int offset;               // Byte position of the first code
+    private final int count;
+    private final int bits;                 // Bits per code, lowest bits first
+
+    public PackedBufferProvider(Provider base, ByteBuffer buffer, int offset, int count, int bits) {
+        this.base = base;
+        this.buffer = buffer;
+        this.offset = offset;
+        this.count = count;
+        this.bits = bits;
+    }
+
+    public int compareRows(int a, int b, HashMap<Object, Integer> categoryOrder) {
+        return base.compareRows(code(a), code(b), categoryOrder);
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public int expectedSize() {
+        // The codes are in the buffer, not on the heap
+        return 40 + base.expectedSize();
+    }
+
+    public Provider setValue(Object o, int index) {
+        return ColumnProvider.copy(this).setValue(o, index);
+    }
+
+    public Object value(int index) {
+        return base.value(code(index));
+    }
+
+    private int code(int index) {
+        long bit = (long) index * bits;
+        int position = offset + (int) (bit >>> 3);
+        int shift = (int) (bit & 7);
+        int bytes = (shift + bits + 7) >>> 3;
+
+        // Absolute reads, so concurrent access is safe
+        long word = 0;
+        for (int i = 0; i < bytes; i++) word |= (long) (buffer.get(position + i) & 0xff) << (8 * i);
+        return (int) ((word >>> shift) & ((1L << bits) - 1));
+    }
+}
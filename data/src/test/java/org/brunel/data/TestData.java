@@ -220,6 +220,26 @@ public class TestData {
 
     }
 
+    @Test
+    public void testMakeFromColumns() {
+        Dataset d = Dataset.makeFromColumns(new String[]{"a", "b", "c", "d"}, new String[]{"v", "k", "d", "b"},
+                new Object[]{
+                        new Object[]{1, 2, null},
+                        new Object[]{new Object[]{"x", "y"}, new int[]{1, 0, 1}},
+                        new Object[]{0, 86400000, null},
+                        "AAAAAAAA+D8AAAAAAAD4fwAAAAAAAADA"
+                });
+        assertEquals(3, d.rowCount());
+        assertEquals("1, 2, ?", Data.join(new Object[]{d.field("a").value(0), d.field("a").value(1), d.field("a").value(2)}));
+        assertEquals("y, x, y", Data.join(new Object[]{d.field("b").value(0), d.field("b").value(1), d.field("b").value(2)}));
+        assertEquals(true, d.field("c").isDate());
+        assertEquals(1.0, Data.asNumeric(d.field("c").value(1)), 1e-9);
+        assertEquals(null, d.field("c").value(2));
+        assertEquals(1.5, Data.asNumeric(d.field("d").value(0)), 1e-9);
+        assertEquals(null, d.field("d").value(1));
+        assertEquals(-2.0, Data.asNumeric(d.field("d").value(2)), 1e-9);
+    }
+
     @Test
     public void testQuoting() {
         assertEquals("'hello'", Data.quote("hello"));
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.data.diagram;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestCloud {
+
+    @Test
+    public void testFirstAtCenter() {
+        Cloud cloud = Cloud.make(3, 400, 200);
+        double[] p = cloud.place(50, 10);
+        assertEquals(0, p[0], 1e-9);
+        assertEquals(0, p[1], 1e-9);
+
+        // The next item must move away from the first
+        p = cloud.place(20, 8);
+        assertTrue(Math.abs(p[0]) > 35 || Math.abs(p[1]) > 9);
+    }
+
+    @Test
+    public void testNoOverlaps() {
+        Random random = new Random(17);
+        int n = 600;
+        double[] w = new double[n], h = new double[n];
+        for (int i = 0; i < n; i++) {
+            double size = 40.0 / (1 + i / 20.0);
+            w[i] = size * (2 + random.nextInt(8)) + 4;
+            h[i] = size;
+            if (i % 5 % 2 == 1) {
+                double t = w[i];
+                w[i] = h[i];
+                h[i] = t;
+            }
+        }
+
+        double[][] p = Cloud.layout(w, h, 800, 500);
+        assertEquals(n, p.length);
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < i; j++)
+                assertFalse(i + " and " + j + " overlap",
+                        Math.abs(p[i][0] - p[j][0]) < (w[i] + w[j]) / 2
+                                && Math.abs(p[i][1] - p[j][1]) < (h[i] + h[j]) / 2);
+    }
+
+    @Test
+    public void testSameAsAllPairs() {
+        Random random = new Random(23);
+        for (int n : new int[]{50, 700}) {
+            double[] w = new double[n], h = new double[n];
+            for (int i = 0; i < n; i++) {
+                // Sizes mostly decreasing, with some repeats and some larger ones out of order
+                double size = i % 7 == 3 ? 5 + random.nextInt(30) : 40.0 / (1 + i / 25.0);
+                w[i] = Math.round(size * (1 + random.nextInt(6)));
+                h[i] = Math.round(size) + 1;
+                if (i % 4 == 1) {
+                    double t = w[i];
+                    w[i] = h[i];
+                    h[i] = t;
+                }
+            }
+
+            double[][] expected = allPairsLayout(w, h, 600, 400);
+            double[][] actual = Cloud.layout(w, h, 600, 400);
+            for (int i = 0; i < n; i++) {
+                assertEquals(n + ":" + i, expected[i][0], actual[i][0], 0);
+                assertEquals(n + ":" + i, expected[i][1], actual[i][1], 0);
+            }
+        }
+    }
+
+    @Test
+    public void testScale() {
+        Cloud cloud = Cloud.make(2, 100, 100);
+        cloud.place(40, 10);
+        assertEquals(100 / 40.0, cloud.scaleToFit(100, 100), 1e-9);
+        assertEquals(50 / 40.0, cloud.scaleToFit(50, 100), 1e-9);
+    }
+
+    // The layout without any speed-ups: test every placed item, and start outside all larger ones
+    private static double[][] allPairsLayout(double[] w, double[] h, double width, double height) {
+        int n = w.length;
+        double delta = Math.max(1, Math.pow(n / 300.0, 2));
+        double precision = Math.pow(0.9, n / 100.0);
+        double size = Math.max(width, height);
+        double dx = delta * width / size, dy = delta * height / size;
+
+        double[][] placed = new double[n][];
+        for (int i = 0; i < n; i++) {
+            double theta = 0;
+            for (int j = 0; j < i; j++)
+                if (w[i] >= precision * placed[j][2] && h[i] > precision * placed[j][3])
+                    theta = Math.max(theta, placed[j][4]);
+            double[] item = new double[]{0, 0, w[i], h[i], theta};
+            while (true) {
+                item[0] = Math.cos(theta) * theta * dx;
+                item[1] = Math.sin(theta) * theta * dy;
+                item[4] = theta;
+                boolean hit = false;
+                for (int j = 0; j < i && !hit; j++) {
+                    double[] p = placed[j];
+                    hit = item[1] + item[3] / 2 >= p[1] - p[3] / 2 && p[1] + p[3] / 2 >= item[1] - item[3] / 2
+                            && item[0] + item[2] / 2 >= p[0] - p[2] / 2 && p[0] + p[2] / 2 >= item[0] - item[2] / 2;
+                }
+                if (!hit) break;
+                theta += delta / Math.max(delta, Math.sqrt(item[0] * item[0] + item[1] * item[1]));
+            }
+            placed[i] = item;
+        }
+        return placed;
+    }
+}
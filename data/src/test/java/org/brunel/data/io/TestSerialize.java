@@ -24,6 +24,9 @@ import org.brunel.data.Field;
 import org.brunel.translator.JSTranslation;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
@@ -34,6 +37,7 @@ import java.util.Date;
 
 import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
 
 /**
  * Tests data serialization and deserialization
@@ -108,7 +112,7 @@ public class TestSerialize {
     public void testWhiskeyDataset() {
         Dataset dataset = Dataset.make(CSV.read(CannedData.whiskey));
         byte[] bytes = Serialize.serializeDataset(dataset);
-        assertEquals(2019, bytes.length);
+        assertEquals(1917, bytes.length);
         assertEquals(Serialize.VERSION, bytes[0]);
 
         Dataset d = (Dataset) Serialize.deserialize(bytes);
@@ -122,7 +126,142 @@ public class TestSerialize {
         String DATA = "a,b\n,";
         Dataset dataset = Dataset.make(CSV.read(DATA));
         byte[] bytes = Serialize.serializeDataset(dataset);
-        assertEquals("6 1 1 2 2 97 0 65 0 1 4 3 1 0 2 98 0 66 0 1 4 3 1 0", dump(bytes));
+        assertEquals("6 3 1 2 2 97 0 65 0 1 4 3 1 0 0 2 98 0 66 0 1 4 3 1 0 0", dump(bytes));
+    }
+
+    @Test
+    public void testNumericEncodings() {
+        String DATA = "a,b,c\n3,1.5,0.1\n1,,1e300\n-2,-2.25,\n3,4,-7e-7";
+        Dataset dataset = Dataset.make(CSV.read(DATA));
+        byte[] bytes = Serialize.serializeDataset(dataset);
+
+        // 'a' are integers in ascending order, written as deltas from -2, with the rows coded in 2 bits each
+        // 'b' needs two decimal places; 'c' must be written as doubles
+        assertEquals("6 3 1 3 2 97 0 65 0 3 7 0 1 0 3 0 3 2 4 2 134 0", dump(bytes).substring(0, 47));
+        assertEquals(Serialize.DECIMAL, bytes[28]);
+        assertEquals(2, bytes[29]);
+        assertEquals(Serialize.NUMBER, bytes[49]);
+
+        Dataset d = (Dataset) Serialize.deserialize(bytes);
+        assertEquals(CannedData.dump(dataset), CannedData.dump(d));
+        assertEquals(-2.25, d.field("b").min(), 0);
+        assertEquals(1e300, d.field("c").max(), 0);
+        assertEquals(-7e-7, d.field("c").min(), 0);
+    }
+
+    @Test
+    public void testStatisticsStored() {
+        // Statistics are only stored for larger fields
+        int n = 2000;
+        Object[] dates = new Object[n], numbers = new Object[n], names = new Object[n];
+        for (int i = 0; i < n; i++) {
+            dates[i] = i % 10 == 0 ? null : new Date(1400000000000L + 86400000L * (i % 365));
+            numbers[i] = i % 7 == 0 ? null : (i % 101) * 0.25;
+            names[i] = "item" + i % 37;
+        }
+        Field[] fields = {Data.toDate(Data.makeColumnField("a", null, dates)),
+                Data.toNumeric(Data.makeColumnField("b", null, numbers)), Data.makeColumnField("c", null, names)};
+
+        for (Field a : fields) {
+            Field b = (Field) Serialize.deserialize(Serialize.serializeField(a));
+            for (String key : new String[]{"n", "unique", "valid", "mode", "validNumeric", "min", "max", "mean",
+                    "median", "granularity"})
+                assertEquals(a.name + ":" + key, a.property(key), b.property(key));
+            assertEquals(a.name, Data.join(a.categories()), Data.join(b.categories()));
+            assertEquals(a.name, Data.join((int[]) a.property("categoryCounts")),
+                    Data.join((int[]) b.property("categoryCounts")));
+
+            // Asking for statistics that were not stored must not recalculate the stored ones
+            Object[] categories = b.categories();
+            Object mean = b.property("mean");
+            assertEquals(a.name, a.property("dateUnit"), b.property("dateUnit"));
+            assertEquals(a.name, a.property("dateFormat"), b.property("dateFormat"));
+            assertTrue(a.name, categories == b.categories());
+            assertTrue(a.name, mean == b.property("mean"));
+        }
+    }
+
+    @Test
+    public void testEncodingsPacked() {
+        byte[] bytes = new ByteOutput().addPacked(new int[]{0, 1, 2, 3, 2}, 2).asBytes();
+        assertEquals("228 2", dump(bytes));
+        assertEquals("0, 1, 2, 3, 2", Data.join(new ByteInput(bytes).readPacked(5, 2)));
+
+        bytes = new ByteOutput().addPacked(new int[]{1000, 3, 1023}, 10).asBytes();
+        assertEquals(4, bytes.length);
+        assertEquals("1000, 3, 1023", Data.join(new ByteInput(bytes).readPacked(3, 10)));
+
+        bytes = new ByteOutput().addPacked(new int[]{0, 0, 0}, 0).asBytes();
+        assertEquals(0, bytes.length);
+        assertEquals("0, 0, 0", Data.join(new ByteInput(bytes).readPacked(3, 0)));
+    }
+
+    @JSTranslation(ignore = true)
+    @Test
+    public void testStreams() throws Exception {
+        Dataset dataset = Dataset.make(CSV.read(CannedData.whiskey));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Serialize.serialize(dataset, out);
+        byte[] bytes = out.toByteArray();
+        assertEquals(dump(Serialize.serializeDataset(dataset)), dump(bytes));
+
+        Dataset copy = (Dataset) Serialize.deserialize(new ByteArrayInputStream(bytes));
+        assertEquals(CannedData.dump(dataset), CannedData.dump(copy));
+
+        // A truncated stream is an IO failure
+        try {
+            Serialize.deserialize(new ByteArrayInputStream(bytes, 0, bytes.length / 2));
+            fail("Expected failure on a truncated stream");
+        } catch (EOFException e) {
+            assertTrue(true);
+        }
+    }
+
+    @JSTranslation(ignore = true)
+    @Test
+    public void testMappedFile() throws Exception {
+        Dataset dataset = Dataset.make(CSV.read(CannedData.whiskey));
+        Path f = Files.createTempFile("data", ".brunel");
+        f.toFile().deleteOnExit();
+        Files.write(f, Serialize.serializeDataset(dataset));
+
+        Dataset copy = (Dataset) Serialize.deserialize(f.toFile());
+        assertEquals(CannedData.dump(dataset), CannedData.dump(copy));
+        assertEquals(dataset.field("Rating").numericProperty("mean"), copy.field("Rating").numericProperty("mean"));
+
+        // Sorting and modifying go through the mapped rows
+        assertEquals(CannedData.dump(dataset.sort("Country")), CannedData.dump(copy.sort("Country")));
+        Field country = copy.field("Country");
+        Object first = country.value(0);
+        country.setValue("x", 1);
+        assertEquals(first, country.value(0));
+        assertEquals("x", country.value(1));
+    }
+
+    @JSTranslation(ignore = true)
+    @Test
+    public void testReadsVersion2() {
+        Dataset d = (Dataset) Serialize.deserialize(undump("6 2 1 3 2 97 0 65 0 3 7 0 0 0 3 5 3 0 4 0 1 2 0 2 98 0 " +
+                "66 0 4 7 2 0 2 193 3 247 2 0 241 4 4 0 1 2 3 2 99 0 67 0 4 3 3 154 153 153 153 153 153 185 63 156 117 " +
+                "0 136 60 228 55 126 95 25 101 71 244 124 167 190 4 0 1 2 3"));
+        assertEquals("a|b|c|#count|#row -- 3|1.5|0.1|1|1 -- 1|?|1.0e300|1|2 -- -2|-2.25|?|1|3 -- 3|4|-7.0e-7|1|4",
+                CannedData.dump(d));
+    }
+
+    @JSTranslation(ignore = true)
+    @Test
+    public void testReadsVersion1() {
+        // Streams written by version 1 of the serialization
+        Dataset d = (Dataset) Serialize.deserialize(undump("6 1 1 2 2 97 0 65 0 3 4 3 195 169 0 226 128 166 0 3 0 1 2 2 98 0 " +
+                "66 0 3 4 3 49 46 50 51 52 53 54 55 56 57 101 45 50 49 51 0 78 97 78 0 3 0 1 2"));
+        assertEquals("a|b|#count|#row -- ?|?|1|1 -- \u00e9|1.23456789e-213|1|2 -- \u2026|NaN|1|3", CannedData.dump(d));
+
+        Field f = (Field) Serialize.deserialize(undump("2 102 111 111 0 98 97 114 0 3 3 4 254 54 53 55 57 49 0 255 " +
+                "4 0 1 2 0"));
+        assertEquals("foo", f.name);
+        assertEquals(true, f.isNumeric());
+        assertEquals(4, f.rowCount());
+        assertEquals(65791, f.max(), 0);
     }
 
     @Test
@@ -130,15 +269,15 @@ public class TestSerialize {
         String DATA = "a,b\n,\n\u00e9,1.23456789e-213\n\u2026,NaN";
         Dataset dataset = Dataset.make(CSV.read(DATA));
         byte[] bytes = Serialize.serializeDataset(dataset);
-        assertEquals("6 1 1 2 2 97 0 65 0 3 4 3 195 169 0 226 128 166 0 3 0 1 2 2 98 0 " +
-                "66 0 3 4 3 49 46 50 51 52 53 54 55 56 57 101 45 50 49 51 0 78 97 78 0 3 0 1 2", dump(bytes));
+        assertEquals("6 3 1 2 2 97 0 65 0 3 4 195 169 0 226 128 166 0 3 3 2 18 0 " +
+                "2 98 0 66 0 3 4 49 46 50 51 52 53 54 55 56 57 101 45 50 49 51 0 78 97 78 0 3 3 2 18 0", dump(bytes));
     }
 
     @Test
     public void testBankDataset() {
         Dataset dataset = Dataset.make(CSV.read(CannedData.bank));
         byte[] bytes = Serialize.serializeDataset(dataset);
-        assertEquals(591, bytes.length);
+        assertEquals(424, bytes.length);
         assertEquals(Serialize.VERSION, bytes[0]);
     }
 
@@ -271,6 +410,51 @@ public class TestSerialize {
 
     }
 
+    @Test
+    public void testEncodingsVarint() {
+        byte[] bytes;
+
+        bytes = new ByteOutput().addVarint(0).addVarint(127).addVarint(128).addVarint(300).asBytes();
+        assertEquals("0 127 128 1 172 2", dump(bytes));
+        ByteInput input = new ByteInput(bytes);
+        assertEquals(0, input.readVarint(), 0);
+        assertEquals(127, input.readVarint(), 0);
+        assertEquals(128, input.readVarint(), 0);
+        assertEquals(300, input.readVarint(), 0);
+
+        bytes = new ByteOutput().addSignedVarint(0).addSignedVarint(-1).addSignedVarint(1).addSignedVarint(-64).asBytes();
+        assertEquals("0 1 2 127", dump(bytes));
+        input = new ByteInput(bytes);
+        assertEquals(0, input.readSignedVarint(), 0);
+        assertEquals(-1, input.readSignedVarint(), 0);
+        assertEquals(1, input.readSignedVarint(), 0);
+        assertEquals(-64, input.readSignedVarint(), 0);
+
+        double big = 4503599627370495.0;
+        bytes = new ByteOutput().addSignedVarint(big).addSignedVarint(-big).asBytes();
+        input = new ByteInput(bytes);
+        assertEquals(big, input.readSignedVarint(), 0);
+        assertEquals(-big, input.readSignedVarint(), 0);
+    }
+
+    @Test
+    public void testEncodingsDoubleBits() {
+        byte[] bytes = new ByteOutput().addDoubleBits(1.0).addDoubleBits(-1.2e200).addDoubleBits(Double.NaN).asBytes();
+        assertEquals("0 0 0 0 0 0 240 63", dump(bytes).substring(0, 18));
+        ByteInput input = new ByteInput(bytes);
+        assertEquals(1.0, input.readDoubleBits(), 0);
+        assertEquals(-1.2e200, input.readDoubleBits(), 0);
+        assertTrue(Double.isNaN(input.readDoubleBits()));
+    }
+
+    @JSTranslation(ignore = true)
+    private byte[] undump(String text) {
+        String[] parts = text.split(" ");
+        byte[] bytes = new byte[parts.length];
+        for (int i = 0; i < parts.length; i++) bytes[i] = (byte) Integer.parseInt(parts[i]);
+        return bytes;
+    }
+
     private String dump(byte[] bytes) {
         String b = "";
         for (int i = 0; i < bytes.length; i++) {
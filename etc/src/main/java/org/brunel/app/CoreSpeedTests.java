@@ -88,7 +88,7 @@ public class CoreSpeedTests {
         assert parseCount > 0;
         parseCount = callsPerSecond(new ActionParsing(10000), 15);
 
-        // Currently around 28-34K
+        // Repeated text comes from the parse cache: around 500K (28-34K when it was parsed every time)
         System.out.println("Parse calls per second = " + parseCount);
 
         // Warm up apply, then call it
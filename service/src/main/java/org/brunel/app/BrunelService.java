@@ -21,8 +21,10 @@ import org.brunel.action.Action;
 import org.brunel.build.d3.D3Builder;
 import org.brunel.build.util.ContentReader;
 import org.brunel.build.util.DataCache;
+import org.brunel.build.util.OutputCache;
 import org.brunel.data.Dataset;
 import org.brunel.match.BestMatch;
+import org.brunel.model.VisItem;
 import org.brunel.util.BrunelD3Result;
 import org.brunel.util.D3Integration;
 import org.brunel.util.WebDisplay;
@@ -30,17 +32,24 @@ import org.brunel.util.WebDisplay;
 import javax.ws.rs.ApplicationPath;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Application;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URI;
 
 /**
@@ -53,12 +62,19 @@ import java.net.URI;
  * POST /brunel/interpret/d3?src={brunel}&amp;width=..&amp;height=..
  *
  * Payload is expected to be CSV as TEXT/PLAIN.
+ *
+ * Visualization responses carry an ETag derived from the Brunel, the data content and the options. A request whose
+ * If-None-Match header lists that tag, or the tag of a compressed form of it, gets a 304 (Not Modified) response
+ * without the visualization being built.
  */
 
 @ApplicationPath("brunel")
 @Path("interpret")
 public class BrunelService extends Application {
 
+	private static final OutputCache htmlCache = new OutputCache();
+	private static final int MAX_AGE_SECONDS = 600;                    // How long clients may reuse output unchecked
+
 	private static final String ERROR_TEMPLATE = "<link rel='stylesheet' href='https://maxcdn.bootstrapcdn.com/bootstrap/3.3.5/css/bootstrap.min.css'>\n" +
 			"<link rel='stylesheet' href='https://maxcdn.bootstrapcdn.com/bootstrap/3.3.5/css/bootstrap-theme.min.css'>\n" +
 			"<script src='//ajax.googleapis.com/ajax/libs/jquery/1.11.3/jquery.min.js' charset='utf-8'></script>\n" +
@@ -84,11 +100,17 @@ public class BrunelService extends Application {
     public Response createAsD3(String data, @QueryParam("src") String brunelSrc,
                                @QueryParam("width") int width,
                                @QueryParam("height") int height,
-                               @QueryParam("visid") String visId) {
+                               @QueryParam("visid") String visId,
+                               @HeaderParam("If-None-Match") String ifNoneMatch) {
 
     	try {
-    		BrunelD3Result result = D3Integration.createBrunelResult(data, brunelSrc, width, height, visId);
-    		return Response.ok(result).header("Access-Control-Allow-Origin", "*").build();
+    		VisItem item = data.isEmpty() ? D3Integration.createVisItem(data, brunelSrc) : null;
+    		EntityTag tag = makeTag(data, item, brunelSrc, width, height, visId, "json");
+    		EntityTag matched = matching(ifNoneMatch, tag);
+    		if (matched != null) return notModified(matched);
+    		BrunelD3Result result = item == null ? D3Integration.createBrunelResult(data, brunelSrc, width, height, visId)
+    				: D3Integration.createBrunelResult(item, brunelSrc, width, height, visId);
+    		return cacheable(Response.ok(result), tag);
 
     	}
     	catch (Exception ex) {
@@ -97,6 +119,49 @@ public class BrunelService extends Application {
     	}
     }
 
+    /**
+     * Generates just the JS for a visualization, streaming it to the client as it is generated rather than building
+     * it all in memory first. This suits visualizations with large amounts of data.
+     * @param data   the data to use for the visualization as CSV
+     * @param brunelSrc the Brunel syntax defining the visualization
+     * @param width the desired width of the resulting visualization
+     * @param height the desired height of the resulting visualization
+     * @param visId an identifier to use for the d3 JS to reference the HTML tag containing the visualization
+     * @return the Javascript defining the visualization
+     */
+    @POST
+    @Path("d3/js")
+    @Consumes(MediaType.TEXT_PLAIN)        //A CSV file is the payload
+    @Produces("application/javascript")
+    public Response createAsD3Script(String data, @QueryParam("src") String brunelSrc,
+                                     @QueryParam("width") final int width,
+                                     @QueryParam("height") final int height,
+                                     @QueryParam("visid") final String visId,
+                                     @HeaderParam("If-None-Match") String ifNoneMatch) {
+
+    	try {
+    		// When the Brunel defines the data, the item is needed for the tag; it is only built once
+    		VisItem defined = data.isEmpty() ? D3Integration.createVisItem(data, brunelSrc) : null;
+    		EntityTag tag = makeTag(data, defined, brunelSrc, width, height, visId, "js");
+    		EntityTag matched = matching(ifNoneMatch, tag);
+    		if (matched != null) return notModified(matched);
+
+    		// Errors in the data or Brunel are found here, before anything is sent
+    		final VisItem item = defined != null ? defined : D3Integration.createVisItem(data, brunelSrc);
+    		StreamingOutput js = new StreamingOutput() {
+    			public void write(OutputStream output) throws IOException {
+    				Writer out = new OutputStreamWriter(output, "UTF-8");
+    				D3Integration.writeBrunelJS(item, width, height, visId, out);
+    			}
+    		};
+    		return cacheable(Response.ok(js), tag);
+    	}
+    	catch (Exception ex) {
+    		ex.printStackTrace();
+    		throw makeException(ex.getMessage(),Status.BAD_REQUEST.getStatusCode(), false);
+    	}
+    }
+
     /**
      * Creates a full HTML page suitable for use within an HTML IFrame.
      * @param brunelSrc the Brunel syntax defining the visualization
@@ -121,7 +186,8 @@ public class BrunelService extends Application {
                                  @QueryParam("description") String description,
                                  @QueryParam("show_brunel") String showBrunel,
                                  @QueryParam("data") String dataUrl,
-                                 @QueryParam("files") String filesLoc
+                                 @QueryParam("files") String filesLoc,
+                                 @HeaderParam("If-None-Match") String ifNoneMatch
     ) {
 
     	try {
@@ -131,9 +197,22 @@ public class BrunelService extends Application {
 
     		String[] titles = new String[] {title, description};
 	    	String src = brunelSrc != null ? brunelSrc : ContentReader.readContentFromUrl(URI.create(brunelUrl));
-	        D3Builder builder = D3Integration.makeD3(readBrunelData(dataUrl, true), src, width, height, "visualization");
-	        String response = WebDisplay.writeHtml(builder, width, height, null, brunelStr, titles);
-    		return Response.ok(response).header("Access-Control-Allow-Origin", "*").build();
+	        VisItem item = D3Integration.makeVisItem(readBrunelData(dataUrl, true), src);
+
+	        // Reuse the page if nothing affecting it, including the data, has changed
+	        String key = OutputCache.key(Action.parse(src), width, height, D3Integration.makeOptions("visualization"),
+	        		brunelStr, title, description);
+	        Object[] sources = item.getDataSets();
+	        EntityTag tag = new EntityTag(OutputCache.fingerprint(key, sources));
+	        EntityTag matched = matching(ifNoneMatch, tag);
+	        if (matched != null) return notModified(matched);
+	        String response = (String) htmlCache.retrieve(key, sources);
+	        if (response == null) {
+	        	D3Builder builder = D3Integration.makeD3(item, src, width, height, "visualization");
+	        	response = WebDisplay.writeHtml(builder, width, height, null, brunelStr, titles);
+	        	htmlCache.store(key, sources, response, 2L * response.length());
+	        }
+    		return cacheable(Response.ok(response), tag);
     	}
     	catch (IOException ex) {
     		 throw makeException("Could not read brunel from: " + brunelUrl, Status.BAD_REQUEST.getStatusCode(), true);
@@ -183,6 +262,40 @@ public class BrunelService extends Application {
     }
 
 
+    //Make a tag identifying the output for the request, using the CSV text or, if there is none, the datasets the item uses
+    private static EntityTag makeTag(String data, VisItem item, String brunelSrc, int width, int height, String visId, String format) {
+    	String key = OutputCache.key(Action.parse(brunelSrc), width, height, D3Integration.makeOptions(visId), format);
+    	Object[] sources = item != null ? item.getDataSets() : new Object[]{data};
+    	return new EntityTag(OutputCache.fingerprint(key, sources));
+    }
+
+    //The tag the If-None-Match header lists for the output, as sent or compressed, or null if it does not list it.
+    //Weak comparison is used, as the specification requires
+    static EntityTag matching(String ifNoneMatch, EntityTag tag) {
+    	if (ifNoneMatch == null) return null;
+    	EntityTag[] forms = {tag, CompressingOutputStream.codedTag(tag, "gzip"), CompressingOutputStream.codedTag(tag, "deflate")};
+    	for (String s : ifNoneMatch.split(",")) {
+    		s = s.trim();
+    		if (s.startsWith("W/")) s = s.substring(2);
+    		if (s.equals("*")) return tag;
+    		for (EntityTag form : forms)
+    			if (s.equals('"' + form.getValue() + '"')) return form;
+    	}
+    	return null;
+    }
+
+    //The response when the client has the output; it carries the tag the client holds
+    private static Response notModified(EntityTag tag) {
+    	return cacheable(Response.notModified(tag), tag);
+    }
+
+    //Adds the tag and lets browsers and proxies keep the response, revalidating it after a while
+    private static Response cacheable(ResponseBuilder builder, EntityTag tag) {
+    	CacheControl control = new CacheControl();
+    	control.setMaxAge(MAX_AGE_SECONDS);
+    	return builder.tag(tag).cacheControl(control).header("Access-Control-Allow-Origin", "*").build();
+    }
+
     //Get a Dataset instance given a URL.  The content will be loaded if not present in the cache.
     private Dataset readBrunelData(String url, boolean formattedError) {
         try {
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.app;
+
+import org.brunel.build.util.DataCache;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Keeps the data cache warm across deployments.  If the BRUNEL_CACHE_DIR system property or environment variable is
+ * set, the cached datasets are written there when the service stops and preloaded in the background when it starts.
+ */
+@WebListener
+public class CacheLifecycle implements ServletContextListener {
+
+    private static final String CACHE_DIR = "BRUNEL_CACHE_DIR";
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        File directory = cacheDirectory();
+        if (directory != null && directory.isDirectory()) DataCache.restore(directory);
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        File directory = cacheDirectory();
+        if (directory == null) return;
+        try {
+            DataCache.snapshot(directory);
+        } catch (IOException e) {
+            event.getServletContext().log("Could not write data cache snapshot to " + directory, e);
+        }
+    }
+
+    private static File cacheDirectory() {
+        String location = System.getProperty(CACHE_DIR);
+        if (location == null) location = System.getenv(CACHE_DIR);
+        return location == null ? null : new File(location);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.app;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MultivaluedMap;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses a response body as it is written, but only once it is known to be large enough to be worth it.
+ * Output is held back until the minimum size is reached; at that point the Content-Encoding header is set and the
+ * held and following bytes are compressed. Smaller bodies are written unchanged when the stream is finished.
+ * A compressed body is different bytes from the uncompressed one, so it gets its own ETag: the coding is added to
+ * the tag value, as in "abc-gzip".
+ */
+class CompressingOutputStream extends OutputStream {
+
+    private final OutputStream target;                          // Where the body finally goes
+    private final MultivaluedMap<String, Object> headers;       // Response headers, still modifiable until we write
+    private final String encoding;                              // "gzip" or "deflate"
+    private final int minSize;                                  // Smaller bodies are not compressed
+    private ByteArrayOutputStream held;                         // Output held until we decide; null once decided
+    private OutputStream out;                                   // Where we write once decided
+
+    /**
+     * The tag for a response body compressed with a coding
+     *
+     * @param tag      the tag for the uncompressed body
+     * @param encoding the content coding
+     * @return the tag for the compressed body
+     */
+    static EntityTag codedTag(EntityTag tag, String encoding) {
+        return new EntityTag(tag.getValue() + "-" + encoding, tag.isWeak());
+    }
+
+    CompressingOutputStream(OutputStream target, MultivaluedMap<String, Object> headers, String encoding, int minSize) {
+        this.target = target;
+        this.headers = headers;
+        this.encoding = encoding;
+        this.minSize = minSize;
+        this.held = new ByteArrayOutputStream(Math.min(minSize, 8192));
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (held != null && held.size() + len >= minSize) startCompressing();
+        if (held == null) out.write(b, off, len);
+        else held.write(b, off, len);
+    }
+
+    public void flush() throws IOException {
+        // Flushing held output would commit the headers before we have decided, so we only flush once decided
+        if (held == null) out.flush();
+    }
+
+    /**
+     * Writes any held output and completes the compressed data, without closing the target stream
+     *
+     * @throws IOException if the target cannot be written to
+     */
+    void finish() throws IOException {
+        if (held != null) {
+            // Never reached the minimum size, so send it as it is
+            held.writeTo(target);
+            held = null;
+            out = target;
+        } else if (out instanceof DeflaterOutputStream) {
+            ((DeflaterOutputStream) out).finish();
+        }
+        target.flush();
+    }
+
+    public void close() throws IOException {
+        finish();
+        target.close();
+    }
+
+    private void startCompressing() throws IOException {
+        headers.putSingle("Content-Encoding", encoding);
+        headers.remove("Content-Length");                       // The length has changed
+        Object tag = headers.getFirst("ETag");
+        if (tag instanceof EntityTag) headers.putSingle("ETag", codedTag((EntityTag) tag, encoding));
+        else if (tag != null) headers.putSingle("ETag", codedTag(EntityTag.valueOf(tag.toString()), encoding));
+        // Sync flushing means a flush sends everything compressed so far, so streamed output reaches the client
+        out = encoding.equals("gzip") ? new GZIPOutputStream(target, 8192, true) : new DeflaterOutputStream(target, true);
+        held.writeTo(out);
+        held = null;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.app;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compresses response bodies with gzip or deflate when the client accepts it. Compression is applied as the body is
+ * written, so streamed responses stay streamed, and bodies smaller than a minimum size are sent unchanged.
+ * The minimum size in bytes may be set with the BRUNEL_COMPRESS_MIN_SIZE system property or environment variable.
+ */
+@Provider
+public class CompressionInterceptor implements WriterInterceptor {
+
+    private static final String MIN_SIZE = "BRUNEL_COMPRESS_MIN_SIZE";
+    private static final int DEFAULT_MIN_SIZE = 1024;
+
+    @Context
+    private HttpHeaders requestHeaders;
+
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+        String encoding = chooseEncoding(requestHeaders.getRequestHeader(HttpHeaders.ACCEPT_ENCODING));
+        if (encoding == null || context.getHeaders().containsKey("Content-Encoding")) {
+            context.proceed();
+            return;
+        }
+
+        // The response depends on what the client accepts, whether or not we end up compressing it
+        context.getHeaders().add("Vary", HttpHeaders.ACCEPT_ENCODING);
+        CompressingOutputStream out = new CompressingOutputStream(context.getOutputStream(), context.getHeaders(),
+                encoding, minSize());
+        context.setOutputStream(out);
+        context.proceed();
+        out.finish();
+    }
+
+    /**
+     * Choose the encoding to use from the Accept-Encoding headers
+     *
+     * @param accepted header values, possibly null
+     * @return "gzip", "deflate" or null if neither is accepted
+     */
+    static String chooseEncoding(List<String> accepted) {
+        if (accepted == null) return null;
+        Set<String> accept = new HashSet<String>(), refuse = new HashSet<String>();
+        for (String header : accepted)
+            for (String item : header.split(",")) {
+                String[] parts = item.split(";");
+                String name = parts[0].trim().toLowerCase();
+                if (name.equals("x-gzip")) name = "gzip";
+                if (parts.length > 1 && parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?")) refuse.add(name);
+                else accept.add(name);
+            }
+
+        // A wildcard only covers codings that are not explicitly refused
+        boolean any = accept.contains("*");
+        for (String encoding : new String[]{"gzip", "deflate"})
+            if (!refuse.contains(encoding) && (accept.contains(encoding) || any)) return encoding;
+        return null;
+    }
+
+    private static int minSize() {
+        String size = System.getProperty(MIN_SIZE);
+        if (size == null) size = System.getenv(MIN_SIZE);
+        try {
+            return size == null ? DEFAULT_MIN_SIZE : Integer.parseInt(size.trim());
+        } catch (NumberFormatException e) {
+            return DEFAULT_MIN_SIZE;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.app;
+
+import org.brunel.build.util.OutputCache;
+import org.brunel.maps.GeoAnalysis;
+import org.brunel.maps.GeoSimplifier;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Serves simplified map feature files, so clients download and draw far less detail than the full public files contain.
+ * If the BRUNEL_GEO_DIR system property or environment variable names a directory holding the feature files (such as
+ * "World.json"), maps built by this service refer to this resource instead of the public files.
+ * The base URL written into maps defaults to this resource relative to the server root; set BRUNEL_GEO_URL to use an
+ * absolute URL instead, for example when the visualizations are shown on pages from other servers.
+ *
+ * REST pattern is:
+ *
+ * GET /brunel/geo/{file}.json?tolerance=..
+ */
+@Path("geo")
+@WebListener
+public class GeoService implements ServletContextListener {
+
+    private static final String GEO_DIR = "BRUNEL_GEO_DIR";
+    private static final String GEO_URL = "BRUNEL_GEO_URL";
+    private static final int MAX_AGE_SECONDS = 7 * 24 * 3600;              // Feature files do not change
+
+    private static final OutputCache cache = new OutputCache();
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        File directory = directory();
+        if (directory == null || !directory.isDirectory()) return;
+        String url = setting(GEO_URL);
+        if (url == null) url = event.getServletContext().getContextPath() + "/brunel/geo/";
+        GeoAnalysis.useSimplifiedFeatures(url);
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        GeoAnalysis.useSimplifiedFeatures(null);
+        cache.clear();
+    }
+
+    /**
+     * Returns a simplified version of a feature file
+     *
+     * @param name      the feature file name
+     * @param tolerance the largest distance, in degrees, simplified lines can be from the originals
+     * @return GeoJSON for the file
+     */
+    @GET
+    @Path("{name}.json")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response features(@PathParam("name") String name, @QueryParam("tolerance") double tolerance) {
+        // Only serve known files, which also guards against requests for other parts of the file system
+        File directory = directory();
+        if (directory == null || !GeoAnalysis.instance().isFeatureFile(name))
+            throw new WebApplicationException(Status.NOT_FOUND);
+
+        // Only a few tolerances are allowed, so we do not cache many versions of each file
+        tolerance = GeoSimplifier.validTolerance(tolerance);
+        String key = name + "|" + tolerance;
+        Object[] sources = new Object[0];
+        String result = (String) cache.retrieve(key, sources);
+        if (result == null) {
+            try {
+                result = simplify(new File(directory, name + ".json"), tolerance);
+            } catch (IOException e) {
+                throw new WebApplicationException(e, Status.NOT_FOUND);
+            }
+            cache.store(key, sources, result, 2L * result.length());
+        }
+
+        CacheControl control = new CacheControl();
+        control.setMaxAge(MAX_AGE_SECONDS);
+        return Response.ok(result).cacheControl(control).header("Access-Control-Allow-Origin", "*").build();
+    }
+
+    private static String simplify(File file, double tolerance) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            return GeoSimplifier.simplify(in, tolerance);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static File directory() {
+        String location = setting(GEO_DIR);
+        return location == null ? null : new File(location);
+    }
+
+    private static String setting(String name) {
+        String value = System.getProperty(name);
+        return value == null ? System.getenv(name) : value;
+    }
+}
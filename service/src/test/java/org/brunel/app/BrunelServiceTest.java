@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.app;
+
+import org.brunel.data.CannedData;
+import org.junit.Test;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class BrunelServiceTest {
+
+    private final BrunelService service = new BrunelService();
+
+    @Test
+    public void testMatching() {
+        EntityTag tag = new EntityTag("abc");
+        assertNull(BrunelService.matching(null, tag));
+        assertEquals(tag, BrunelService.matching("\"abc\"", tag));
+        assertEquals(tag, BrunelService.matching("\"xyz\", \"abc\"", tag));
+        assertEquals(tag, BrunelService.matching("\"xyz\",\"abc\",\"pqr\"", tag));
+        assertEquals(tag, BrunelService.matching("*", tag));
+        assertEquals(tag, BrunelService.matching("W/\"abc\"", tag));
+        assertEquals(tag, BrunelService.matching("\"xyz\", W/\"abc\"", tag));
+        assertNull(BrunelService.matching("\"xyz\"", tag));
+        assertNull(BrunelService.matching("\"xyz\", W/\"pqr\"", tag));
+        assertNull(BrunelService.matching("abc", tag));                             // Tags must be quoted
+        assertNull(BrunelService.matching("\"abcd\"", tag));
+
+        // Compressed forms of the output have their own tags
+        assertEquals(new EntityTag("abc-gzip"), BrunelService.matching("\"xyz\", \"abc-gzip\"", tag));
+        assertEquals(new EntityTag("abc-deflate"), BrunelService.matching("W/\"abc-deflate\"", tag));
+        assertNull(BrunelService.matching("\"abc-br\"", tag));
+    }
+
+    @Test
+    public void testNotModified() {
+        String brunel = "x(Country) y(Rating) mean(Rating)";
+        Response first = service.createAsD3(CannedData.whiskey, brunel, 400, 300, "vis", null);
+        assertEquals(200, first.getStatus());
+        assertNotNull(first.getEntity());
+        EntityTag tag = first.getEntityTag();
+        assertNotNull(tag);
+
+        String header = "\"other\", W/\"" + tag.getValue() + "\"";
+        Response second = service.createAsD3(CannedData.whiskey, brunel, 400, 300, "vis", header);
+        assertEquals(304, second.getStatus());
+        assertEquals(tag, second.getEntityTag());
+        assertNull(second.getEntity());
+
+        // A client holding the compressed output is told it still has that
+        EntityTag gzipped = CompressingOutputStream.codedTag(tag, "gzip");
+        Response third = service.createAsD3(CannedData.whiskey, brunel, 400, 300, "vis", gzipped.toString());
+        assertEquals(304, third.getStatus());
+        assertEquals(gzipped, third.getEntityTag());
+
+        // Different data gives a different tag, so the output is sent
+        Response changed = service.createAsD3(CannedData.bank, "x(jobcat) y(salary)", 400, 300, "vis", header);
+        assertEquals(200, changed.getStatus());
+        assertFalse(tag.equals(changed.getEntityTag()));
+    }
+
+    @Test
+    public void testScriptNotModified() {
+        String brunel = "x(Country) y(Rating) mean(Rating)";
+        Response first = service.createAsD3Script(CannedData.whiskey, brunel, 400, 300, "vis", null);
+        assertEquals(200, first.getStatus());
+        assertNotNull(first.getEntity());
+        EntityTag tag = first.getEntityTag();
+
+        // The script and JSON forms of the same visualization have different tags
+        assertFalse(tag.equals(service.createAsD3(CannedData.whiskey, brunel, 400, 300, "vis", null).getEntityTag()));
+
+        Response second = service.createAsD3Script(CannedData.whiskey, brunel, 400, 300, "vis", "\"" + tag.getValue() + "\"");
+        assertEquals(304, second.getStatus());
+        assertEquals(tag, second.getEntityTag());
+        assertNull(second.getEntity());
+    }
+}
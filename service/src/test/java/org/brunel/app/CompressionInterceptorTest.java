@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2015 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.brunel.app;
+
+import org.junit.Test;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Scanner;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class CompressionInterceptorTest {
+
+    @Test
+    public void testChooseEncoding() {
+        assertNull(CompressionInterceptor.chooseEncoding(null));
+        assertNull(CompressionInterceptor.chooseEncoding(Collections.singletonList("identity")));
+        assertEquals("gzip", CompressionInterceptor.chooseEncoding(Collections.singletonList("deflate, gzip;q=0.8")));
+        assertEquals("deflate", CompressionInterceptor.chooseEncoding(Arrays.asList("gzip;q=0", "deflate")));
+        assertEquals("gzip", CompressionInterceptor.chooseEncoding(Collections.singletonList("*")));
+
+        // A wildcard does not bring back a refused coding
+        assertEquals("deflate", CompressionInterceptor.chooseEncoding(Collections.singletonList("gzip;q=0, *")));
+        assertEquals("deflate", CompressionInterceptor.chooseEncoding(Arrays.asList("*", "x-gzip; q=0.0")));
+        assertNull(CompressionInterceptor.chooseEncoding(Collections.singletonList("gzip;q=0, deflate;q=0, *")));
+        assertNull(CompressionInterceptor.chooseEncoding(Collections.singletonList("*;q=0")));
+    }
+
+    @Test
+    public void testTagsIncludeCoding() throws Exception {
+        byte[] body = new byte[1000];
+        for (String encoding : new String[]{"gzip", "deflate"}) {
+            MultivaluedMap<String, Object> headers = new MultivaluedHashMap<String, Object>();
+            headers.putSingle("ETag", new EntityTag("abc"));
+            CompressingOutputStream out = new CompressingOutputStream(new ByteArrayOutputStream(), headers, encoding, 100);
+            out.write(body);
+            out.finish();
+            assertEquals(new EntityTag("abc-" + encoding), headers.getFirst("ETag"));
+        }
+
+        // Bodies sent unchanged keep their tag
+        MultivaluedMap<String, Object> headers = new MultivaluedHashMap<String, Object>();
+        headers.putSingle("ETag", new EntityTag("abc"));
+        CompressingOutputStream out = new CompressingOutputStream(new ByteArrayOutputStream(), headers, "gzip", 10000);
+        out.write(body);
+        out.finish();
+        assertEquals(new EntityTag("abc"), headers.getFirst("ETag"));
+    }
+
+    @Test
+    public void testFlushSendsCompressedOutput() throws Exception {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 200; i++) b.append("var x").append(i).append(" = ").append(i % 7).append(";\n");
+        byte[] body = b.toString().getBytes("UTF-8");
+
+        for (String encoding : new String[]{"gzip", "deflate"}) {
+            ByteArrayOutputStream target = new ByteArrayOutputStream();
+            CompressingOutputStream out = new CompressingOutputStream(target, new MultivaluedHashMap<String, Object>(),
+                    encoding, 100);
+            out.write(body);
+            out.flush();
+
+            // Everything written so far can be decompressed before the stream is finished
+            ByteArrayInputStream in = new ByteArrayInputStream(target.toByteArray());
+            InflaterInputStream inflater = encoding.equals("gzip") ? new GZIPInputStream(in) : new InflaterInputStream(in);
+            byte[] read = new byte[body.length];
+            int n = 0, r;
+            while (n < read.length && (r = inflater.read(read, n, read.length - n)) > 0) n += r;
+            assertArrayEquals(body, read);
+            out.finish();
+        }
+    }
+
+    @Test
+    public void testSmallBodyUnchanged() throws Exception {
+        MultivaluedMap<String, Object> headers = new MultivaluedHashMap<String, Object>();
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        CompressingOutputStream out = new CompressingOutputStream(target, headers, "gzip", 100);
+        out.write("small".getBytes("UTF-8"));
+        out.flush();
+        assertEquals(0, target.size());
+        out.finish();
+        assertEquals("small", target.toString("UTF-8"));
+        assertFalse(headers.containsKey("Content-Encoding"));
+    }
+
+    @Test
+    public void testCompresses() throws Exception {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 1000; i++) b.append("var x").append(i).append(" = ").append(i % 7).append(";\n");
+        byte[] body = b.toString().getBytes("UTF-8");
+
+        for (String encoding : new String[]{"gzip", "deflate"}) {
+            MultivaluedMap<String, Object> headers = new MultivaluedHashMap<String, Object>();
+            headers.putSingle("Content-Length", body.length);
+            ByteArrayOutputStream target = new ByteArrayOutputStream();
+            CompressingOutputStream out = new CompressingOutputStream(target, headers, encoding, 100);
+            for (int i = 0; i < body.length; i += 37) out.write(body, i, Math.min(37, body.length - i));
+            out.finish();
+
+            assertEquals(encoding, headers.getFirst("Content-Encoding"));
+            assertFalse(headers.containsKey("Content-Length"));
+            ByteArrayInputStream in = new ByteArrayInputStream(target.toByteArray());
+            Scanner s = new Scanner(encoding.equals("gzip") ? new GZIPInputStream(in) : new InflaterInputStream(in), "UTF-8");
+            assertArrayEquals(body, s.useDelimiter("\\A").next().getBytes("UTF-8"));
+        }
+    }
+}